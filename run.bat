@@ -7,19 +7,6 @@ echo          miyabi69 Protocol
 echo ======================================
 echo.
 
-REM Check if nmap is installed
-where nmap >nul 2>nul
-if %errorlevel% neq 0 (
-    echo ERROR: nmap is not installed!
-    echo Please install nmap from: https://nmap.org/download.html
-    echo Or use: choco install nmap
-    pause
-    exit /b 1
-)
-
-for /f "tokens=*" %%i in ('nmap --version ^| findstr /r "Nmap version"') do set NMAP_VERSION=%%i
-echo ✓ nmap found: %NMAP_VERSION%
-
 REM Check if Java 17+ is available
 java -version >nul 2>nul
 if %errorlevel% neq 0 (
@@ -8,18 +8,6 @@ echo "         miyabi69 Protocol            "
 echo "======================================"
 echo ""
 
-# Check if nmap is installed
-if ! command -v nmap &> /dev/null; then
-    echo "ERROR: nmap is not installed!"
-    echo "Please install nmap:"
-    echo "  Ubuntu/Debian: sudo apt-get install nmap"
-    echo "  Fedora/RHEL:   sudo dnf install nmap"
-    echo "  macOS:         brew install nmap"
-    exit 1
-fi
-
-echo "✓ nmap found: $(nmap --version | head -n1)"
-
 # Check if Java 17+ is available
 if ! command -v java &> /dev/null; then
     echo "ERROR: Java is not installed!"
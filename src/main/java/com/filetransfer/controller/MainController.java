@@ -6,6 +6,8 @@ import com.filetransfer.service.*;
 import com.filetransfer.util.FirewallManager;
 import com.filetransfer.util.Logger;
 import com.filetransfer.util.SessionManager;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -18,6 +20,7 @@ import javafx.stage.FileChooser;
 import java.io.File;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public class MainController {
@@ -40,6 +43,12 @@ public class MainController {
     @FXML
     private TextField mailboxPathField;
     
+    @FXML
+    private TextField sendRateField;
+    
+    @FXML
+    private TextField receiveRateField;
+    
     @FXML
     private Button scanButton;
     
@@ -103,18 +112,24 @@ public class MainController {
     @FXML
     private Button clearFinishedButton;
     
+    @FXML
+    private Button retryButton;
+    
     private ObservableList<Device> deviceList;
     private ObservableList<TransferTask> outgoingQueue;
     private ObservableList<TransferTask> incomingQueue;
     private Logger logger;
     private NetworkScanner networkScanner;
+    private NetworkScanner.Scan currentScan; // Running scan, FX thread only
+    private PresenceBeacon presenceBeacon;
     private PortListener portListener;
     private HandshakeService handshakeService;
     private FileTransferService fileTransferService;
     private FirewallManager firewallManager;
     private SessionManager sessionManager;
     private TransferQueueManager queueManager;
-    private File selectedFile;
+    private BandwidthLimiter bandwidthLimiter;
+    private List<File> selectedFiles;
     
     @FXML
     public void initialize() {
@@ -134,18 +149,50 @@ public class MainController {
         firewallManager = new FirewallManager(logger);
         firewallManager.openPort();
         
+        // Socket options, buffers, timeouts and transfer features from application.properties
+        TransportConfig transportConfig = TransportConfig.load(logger);
+        if (Threads.setVirtual(transportConfig.isVirtualThreads())) {
+            logger.log("Using virtual threads for network and transfer work");
+        } else if (transportConfig.isVirtualThreads()) {
+            logger.log("WARNING: Virtual threads need Java 21 or later, using platform threads");
+        }
+        
         // Initialize queue manager
         queueManager = new TransferQueueManager(logger);
         
+        ChannelTransfer.setStreamBufferSize(transportConfig.getBufferSize());
+        bandwidthLimiter = new BandwidthLimiter(transportConfig);
+        showRate(sendRateField, bandwidthLimiter.getSendRate());
+        showRate(receiveRateField, bandwidthLimiter.getReceiveRate());
+        
         // Initialize services
         fileTransferService = new FileTransferService(logger, defaultMailbox, sessionManager);
         fileTransferService.setQueueManager(queueManager);
+        fileTransferService.setTransportConfig(transportConfig);
+        fileTransferService.setDefaultEngine(transportConfig.getEngine());
+        fileTransferService.setReceiveEngine(transportConfig.getReceiveEngine());
+        fileTransferService.setMappedThreshold(transportConfig.getMappedThreshold());
+        fileTransferService.setStripeCount(transportConfig.getStripes());
+        fileTransferService.setCompressionEnabled(transportConfig.isCompressionEnabled());
+        fileTransferService.setDeltaEnabled(transportConfig.isDeltaEnabled());
+        fileTransferService.setDedupEnabled(transportConfig.isDedupEnabled());
+        fileTransferService.setChecksumEnabled(transportConfig.isChecksumEnabled());
+        fileTransferService.setBandwidthLimiter(bandwidthLimiter);
+        PeerConnectionPool connectionPool = new PeerConnectionPool(logger, transportConfig);
+        fileTransferService.setConnectionPool(connectionPool);
         
         portListener = new PortListener(logger, fileTransferService, sessionManager);
         portListener.setQueueManager(queueManager);
+        portListener.setTransportConfig(transportConfig);
+        portListener.setBandwidthLimiter(bandwidthLimiter);
+        portListener.setMaxStripes(transportConfig.getMaxStripes());
         
         networkScanner = new NetworkScanner(logger);
+        networkScanner.setTransportConfig(transportConfig);
+        presenceBeacon = new PresenceBeacon(logger, transportConfig);
         handshakeService = new HandshakeService(logger, sessionManager);
+        handshakeService.setConnectionPool(connectionPool);
+        handshakeService.setTransportConfig(transportConfig);
         
         // Setup queue update listener
         outgoingQueue = FXCollections.observableArrayList();
@@ -158,8 +205,9 @@ public class MainController {
             }
             @Override
             public void onTaskStatusChanged(TransferTask task) {
-                // When task status changes to TRANSFERRING, start the actual transfer
-                if (task.getStatus() == TransferTask.TransferStatus.TRANSFERRING) {
+                // When an outgoing task is approved locally, send its request; the transfer
+                // takes a slot once the receiver approves
+                if (task.getStatus() == TransferTask.TransferStatus.AWAITING_REMOTE_APPROVAL) {
                     if (task.getDirection() == TransferTask.TransferDirection.OUTGOING) {
                         // Start outgoing transfer
                         queueManager.executeTransfer(task.getId(), () -> {
@@ -263,12 +311,34 @@ public class MainController {
         // Start port listener
         portListener.start();
         
+        // Peers announcing themselves show up in the device table without a scan
+        presenceBeacon.addListener(new PresenceBeacon.PresenceListener() {
+            @Override
+            public void onPeerUp(PresenceBeacon.Peer peer) {
+                Platform.runLater(() -> showPeer(peer));
+            }
+            
+            @Override
+            public void onPeerDown(PresenceBeacon.Peer peer) {
+                Platform.runLater(() -> deviceList.removeIf(device -> device.getIpAddress().equals(peer.getIpAddress())));
+            }
+            
+            @Override
+            public void onNetworkChanged() {
+                networkScanner.networkChanged();
+            }
+        });
+        if (transportConfig.isBeaconEnabled()) {
+            presenceBeacon.start();
+        }
+        
         logger.log("Application started");
         logger.log("Mailbox location: " + defaultMailbox);
         
         // Add shutdown hook to close firewall port and clear session
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.log("Application shutting down...");
+            presenceBeacon.stop();
             portListener.stop();
             queueManager.shutdown();
             firewallManager.closePort();
@@ -290,20 +360,61 @@ public class MainController {
     
     @FXML
     private void handleScan() {
-        scanButton.setDisable(true);
+        // A second click stops the running scan; what was found so far stays in the table
+        if (currentScan != null) {
+            scanButton.setDisable(true);
+            logger.log("Stopping network scan...");
+            currentScan.cancel();
+            return;
+        }
+        
+        // The table stays as it is while the scan confirms it; what is gone is removed at the end
+        scanButton.setText("Stop Scan");
         logger.log("=== Starting Network Scan ===");
         
-        // Run scan in background thread
-        new Thread(() -> {
-            List<Device> devices = networkScanner.scanNetwork();
+        // Devices show up as they answer, so a handshake can start before the scan ends
+        currentScan = networkScanner.startScan(new NetworkScanner.ScanListener() {
+            @Override
+            public void onDeviceFound(Device device) {
+                Platform.runLater(() -> {
+                    if (findDevice(device.getIpAddress()) == null) {
+                        deviceList.add(device);
+                    }
+                });
+            }
             
-            Platform.runLater(() -> {
-                deviceList.clear();
-                deviceList.addAll(devices);
-                scanButton.setDisable(false);
-                logger.log("=== Scan Complete ===");
-            });
-        }).start();
+            @Override
+            public void onDeviceUpdated(Device device) {
+                Platform.runLater(() -> deviceTable.refresh());
+            }
+            
+            @Override
+            public void onShardDone(String shard, int done, int total) {
+                if (total > 1) {
+                    Platform.runLater(() -> {
+                        if (currentScan != null) {
+                            scanButton.setText("Stop Scan (" + done + "/" + total + ")");
+                        }
+                    });
+                }
+            }
+            
+            @Override
+            public void onScanComplete(List<Device> devices, boolean cancelled) {
+                Set<String> found = devices.stream().map(Device::getIpAddress).collect(Collectors.toSet());
+                Platform.runLater(() -> {
+                    if (!cancelled) {
+                        // Announced peers are live even where the scan did not see them
+                        deviceList.removeIf(device -> !found.contains(device.getIpAddress())
+                            && presenceBeacon.getPeer(device.getIpAddress()) == null);
+                    }
+                    currentScan = null;
+                    scanButton.setText("Scan Network");
+                    scanButton.setDisable(false);
+                    logger.log(cancelled ? "=== Scan Cancelled ===" : "=== Scan Complete ===");
+                });
+            }
+        });
     }
     
     @FXML
@@ -322,7 +433,7 @@ public class MainController {
         handshakeButton.setDisable(true);
         logger.log("Initiating handshake with " + selectedDevice.getIpAddress());
         
-        new Thread(() -> {
+        Threads.start("handshake", false, () -> {
             boolean success = handshakeService.sendHandshake(selectedDevice.getIpAddress());
             
             Platform.runLater(() -> {
@@ -331,18 +442,22 @@ public class MainController {
                 }
                 handshakeButton.setDisable(false);
             });
-        }).start();
+        });
     }
     
     @FXML
     private void handleSelectFile() {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select File to Send");
-        selectedFile = fileChooser.showOpenDialog(sendFileButton.getScene().getWindow());
-        
-        if (selectedFile != null) {
-            selectedFileLabel.setText("File: " + selectedFile.getName());
-            logger.log("Selected file: " + selectedFile.getAbsolutePath());
+        fileChooser.setTitle("Select Files to Send");
+        selectedFiles = fileChooser.showOpenMultipleDialog(sendFileButton.getScene().getWindow());
+        
+        if (selectedFiles != null && selectedFiles.size() == 1) {
+            selectedFileLabel.setText("File: " + selectedFiles.get(0).getName());
+            logger.log("Selected file: " + selectedFiles.get(0).getAbsolutePath());
+        } else if (selectedFiles != null) {
+            // Several files go as one batch with a single approval
+            selectedFileLabel.setText("Files: " + selectedFiles.size() + " selected");
+            logger.log("Selected " + selectedFiles.size() + " files in " + selectedFiles.get(0).getParent());
         }
     }
     
@@ -360,7 +475,7 @@ public class MainController {
             return;
         }
         
-        if (selectedFile == null) {
+        if (selectedFiles == null || selectedFiles.isEmpty()) {
             showAlert("No File Selected", "Please select a file to send.");
             return;
         }
@@ -379,19 +494,19 @@ public class MainController {
         sendFileButton.setDisable(true);
         logger.log("=== Starting File Transfer ===");
         
-        File fileToSend = selectedFile;
+        List<File> filesToSend = selectedFiles;
         String targetIP = selectedDevice.getIpAddress();
         
-        new Thread(() -> {
-            fileTransferService.sendFile(targetIP, fileToSend);
+        Threads.start("send-files", false, () -> {
+            fileTransferService.sendFiles(targetIP, filesToSend);
             
             Platform.runLater(() -> {
                 sendFileButton.setDisable(false);
-                selectedFile = null;
+                selectedFiles = null;
                 selectedFileLabel.setText("No file selected");
                 logger.log("=== File Transfer Complete ===");
             });
-        }).start();
+        });
     }
     
     @FXML
@@ -403,6 +518,67 @@ public class MainController {
         }
     }
     
+    @FXML
+    private void handleSetBandwidth() {
+        try {
+            long sendRate = parseRate(sendRateField.getText());
+            long receiveRate = parseRate(receiveRateField.getText());
+            bandwidthLimiter.setSendRate(sendRate);
+            bandwidthLimiter.setReceiveRate(receiveRate);
+            logger.log("Bandwidth limits updated: upload " + describeRate(sendRate)
+                + ", download " + describeRate(receiveRate));
+        } catch (NumberFormatException e) {
+            showAlert(Alert.AlertType.ERROR, "Invalid Limit", "Enter a whole number of KB/s, or leave the field empty for no limit.");
+        }
+    }
+    
+    /**
+     * Bytes per second from a KB/s field; empty or 0 means unlimited
+     */
+    private long parseRate(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return 0;
+        }
+        long kilobytes = Long.parseLong(text.trim());
+        if (kilobytes < 0) {
+            throw new NumberFormatException("Negative rate");
+        }
+        return kilobytes * 1024;
+    }
+    
+    private void showRate(TextField field, long bytesPerSecond) {
+        field.setText(bytesPerSecond > 0 ? String.valueOf(Math.max(1, bytesPerSecond / 1024)) : "");
+    }
+    
+    private String describeRate(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? (bytesPerSecond / 1024) + " KB/s" : "unlimited";
+    }
+    
+    /**
+     * Add an announced peer to the device table, or update the row of its address
+     */
+    private void showPeer(PresenceBeacon.Peer peer) {
+        Device device = findDevice(peer.getIpAddress());
+        if (device == null) {
+            device = new Device(peer.getIpAddress(), peer.getHostname(), true);
+            device.setCompatible(sessionManager.isCompatible(peer.getIpAddress()));
+            deviceList.add(device);
+        } else {
+            device.setHostname(peer.getHostname());
+            device.setPort8080Open(true);
+            deviceTable.refresh();
+        }
+    }
+    
+    private Device findDevice(String ipAddress) {
+        for (Device device : deviceList) {
+            if (device.getIpAddress().equals(ipAddress)) {
+                return device;
+            }
+        }
+        return null;
+    }
+    
     private void markDeviceCompatible(String ipAddress) {
         Platform.runLater(() -> {
             for (Device device : deviceList) {
@@ -461,6 +637,25 @@ public class MainController {
         logger.log("Rejected " + selected.size() + " file(s)");
     }
     
+    @FXML
+    private void handleRetryFailed() {
+        // Retry the selected outgoing tasks, or every failed one if nothing is selected
+        List<TransferTask> selected = outgoingQueueTable.getSelectionModel().getSelectedItems();
+        List<TransferTask> candidates = selected.isEmpty() ? outgoingQueue : selected;
+        
+        List<String> taskIds = candidates.stream()
+                .filter(task -> task.getStatus() == TransferTask.TransferStatus.FAILED)
+                .map(TransferTask::getId)
+                .collect(Collectors.toList());
+        if (taskIds.isEmpty()) {
+            showAlert("Nothing to Retry", "There are no failed outgoing transfers.");
+            return;
+        }
+        
+        queueManager.retryTasks(taskIds);
+        logger.log("Retrying " + taskIds.size() + " failed transfer(s)");
+    }
+    
     @FXML
     private void handleClearFinished() {
         queueManager.clearFinishedTasks();
@@ -490,6 +685,7 @@ public class MainController {
     }
     
     public void shutdown() {
+        presenceBeacon.stop();
         portListener.stop();
         queueManager.shutdown();
         // Clear session on app closing
@@ -0,0 +1,63 @@
+package com.filetransfer.model;
+
+import java.util.List;
+
+/**
+ * Several files sent over one connection under a single approval.
+ * The batch is the task the queue schedules and shows; each file keeps its own
+ * status and progress in an item task that is not in the queue itself.
+ */
+public class BatchTransferTask extends TransferTask {
+
+    private final List<TransferTask> items;
+
+    public BatchTransferTask(List<TransferTask> items, String remoteIP, TransferDirection direction) {
+        super(label(items), remoteIP, totalSize(items), direction);
+        this.items = List.copyOf(items);
+    }
+
+    private static String label(List<TransferTask> items) {
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("Empty batch");
+        }
+        return items.get(0).getFileName() + " + " + (items.size() - 1) + " more";
+    }
+
+    private static long totalSize(List<TransferTask> items) {
+        long total = 0;
+        for (TransferTask item : items) {
+            total += item.getFileSize();
+        }
+        return total;
+    }
+
+    /**
+     * The files of the batch, in manifest order
+     */
+    public List<TransferTask> getItems() {
+        return items;
+    }
+
+    public int countItems(TransferStatus status) {
+        int count = 0;
+        for (TransferTask item : items) {
+            if (item.getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String getStatusDisplay() {
+        switch (getStatus()) {
+            case TRANSFERRING:
+                return "Transferring (" + getProgress() + "%, " + countItems(TransferStatus.COMPLETED)
+                    + "/" + items.size() + " files)";
+            case COMPLETED:
+                return "Completed (" + items.size() + " files)";
+            default:
+                return super.getStatusDisplay();
+        }
+    }
+}
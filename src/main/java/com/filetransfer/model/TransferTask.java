@@ -9,6 +9,7 @@ public class TransferTask {
     public enum TransferStatus {
         PENDING_APPROVAL,    // Waiting for receiver to approve
         APPROVED,            // Approved, waiting for transfer slot
+        AWAITING_REMOTE_APPROVAL, // Outgoing: request sent, waiting for the receiver's answer
         TRANSFERRING,        // Currently transferring
         COMPLETED,           // Transfer completed successfully
         REJECTED,            // Receiver rejected
@@ -21,6 +22,13 @@ public class TransferTask {
         INCOMING   // Receiving file
     }
     
+    public enum TransferEngine {
+        STREAM,    // Buffered copy through a heap array (fallback)
+        ZERO_COPY, // FileChannel.transferTo / direct-buffer socket I/O, no heap copies
+        MAPPED,    // Receive only: preallocated file written through mapped windows (sends like ZERO_COPY)
+        PIPELINED  // Reader and writer threads overlapping disk and network I/O through a ring of buffers
+    }
+    
     private final String id;
     private String externalId; // Sequence ID from sender (for incoming transfers)
     private final File file;
@@ -31,6 +39,9 @@ public class TransferTask {
     private final LocalDateTime createdAt;
     private int progress; // 0-100
     private String errorMessage;
+    private TransferEngine engine = TransferEngine.ZERO_COPY;
+    private double compressionRatio; // File bytes per wire byte, 0 if the payload was sent as is (no compression or delta)
+    private boolean deduplicated; // Completed from a copy the receiver already had
     
     public TransferTask(File file, String remoteIP, TransferDirection direction) {
         this.id = UUID.randomUUID().toString();
@@ -83,8 +94,10 @@ public class TransferTask {
             return String.format("%.1f KB", fileSize / 1024.0);
         } else if (fileSize < 1024 * 1024 * 1024) {
             return String.format("%.1f MB", fileSize / (1024.0 * 1024.0));
-        } else {
+        } else if (fileSize < 1024L * 1024 * 1024 * 1024) {
             return String.format("%.2f GB", fileSize / (1024.0 * 1024.0 * 1024.0));
+        } else {
+            return String.format("%.2f TB", fileSize / (1024.0 * 1024.0 * 1024.0 * 1024.0));
         }
     }
     
@@ -108,6 +121,10 @@ public class TransferTask {
         return errorMessage;
     }
     
+    public TransferEngine getEngine() {
+        return engine;
+    }
+    
     public String getExternalId() {
         return externalId != null ? externalId : id;
     }
@@ -116,8 +133,15 @@ public class TransferTask {
         switch (status) {
             case PENDING_APPROVAL: return "Pending Approval";
             case APPROVED: return "Approved (Waiting)";
+            case AWAITING_REMOTE_APPROVAL: return "Awaiting Remote Approval";
             case TRANSFERRING: return "Transferring (" + progress + "%)";
-            case COMPLETED: return "Completed";
+            case COMPLETED:
+                if (deduplicated) {
+                    return direction == TransferDirection.OUTGOING
+                        ? "Completed (receiver already had it)" : "Completed (already in mailbox)";
+                }
+                return compressionRatio >= 1.05
+                    ? String.format("Completed (%.1fx less data sent)", compressionRatio) : "Completed";
             case REJECTED: return "Rejected";
             case FAILED: return "Failed: " + (errorMessage != null ? errorMessage : "Unknown error");
             case CANCELLED: return "Cancelled";
@@ -142,6 +166,26 @@ public class TransferTask {
         this.externalId = externalId;
     }
     
+    public void setEngine(TransferEngine engine) {
+        this.engine = engine;
+    }
+    
+    public double getCompressionRatio() {
+        return compressionRatio;
+    }
+    
+    public void setCompressionRatio(double compressionRatio) {
+        this.compressionRatio = compressionRatio;
+    }
+    
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+    
+    public void setDeduplicated(boolean deduplicated) {
+        this.deduplicated = deduplicated;
+    }
+    
     @Override
     public String toString() {
         return String.format("[%s] %s - %s to %s (%s)", 
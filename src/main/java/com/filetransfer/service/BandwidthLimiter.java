@@ -0,0 +1,82 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.TransportConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outbound and inbound rate limits: one bucket for all traffic in each direction and
+ * one per peer. A transfer pays every bucket that applies to it, so the tighter one wins.
+ * Limits can be changed at any time; running transfers follow the new rate at once.
+ */
+public class BandwidthLimiter {
+
+    private final TokenBucket send;
+    private final TokenBucket receive;
+    private final Map<String, TokenBucket> peerSend = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> peerReceive = new ConcurrentHashMap<>();
+    private final TransportConfig config;
+
+    /**
+     * Limits from app.limit.sendRate, app.limit.receiveRate and their per-peer overrides
+     */
+    public BandwidthLimiter(TransportConfig config) {
+        this.config = config;
+        this.send = new TokenBucket(config.getSendRate());
+        this.receive = new TokenBucket(config.getReceiveRate());
+    }
+
+    /**
+     * No limits
+     */
+    public BandwidthLimiter() {
+        this(TransportConfig.defaults());
+    }
+
+    /**
+     * Buckets for data sent to peerIP
+     */
+    public TokenBucket[] forSending(String peerIP) {
+        return new TokenBucket[] {send, peerSend.computeIfAbsent(peerIP,
+            ip -> new TokenBucket(config.getPeerSendRate(ip)))};
+    }
+
+    /**
+     * Buckets for data received from peerIP
+     */
+    public TokenBucket[] forReceiving(String peerIP) {
+        return new TokenBucket[] {receive, peerReceive.computeIfAbsent(peerIP,
+            ip -> new TokenBucket(config.getPeerReceiveRate(ip)))};
+    }
+
+    /**
+     * Outbound limit for all peers together, in bytes per second (0 = unlimited)
+     */
+    public void setSendRate(long bytesPerSecond) {
+        send.setRate(bytesPerSecond);
+    }
+
+    public long getSendRate() {
+        return send.getRate();
+    }
+
+    /**
+     * Inbound limit for all peers together, in bytes per second (0 = unlimited)
+     */
+    public void setReceiveRate(long bytesPerSecond) {
+        receive.setRate(bytesPerSecond);
+    }
+
+    public long getReceiveRate() {
+        return receive.getRate();
+    }
+
+    public void setPeerSendRate(String peerIP, long bytesPerSecond) {
+        forSending(peerIP)[1].setRate(bytesPerSecond);
+    }
+
+    public void setPeerReceiveRate(String peerIP, long bytesPerSecond) {
+        forReceiving(peerIP)[1].setRate(bytesPerSecond);
+    }
+}
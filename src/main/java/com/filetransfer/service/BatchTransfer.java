@@ -0,0 +1,106 @@
+package com.filetransfer.service;
+
+import com.filetransfer.model.TransferTask;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * Many files over one connection under one approval.
+ *
+ * Request: BATCH_REQUEST:sequenceId:label:totalSize:FILES=n[:CHECKSUM=crc32c]
+ *          followed by n manifest lines: size:fileName (sent by ControlChannel, which
+ *          uses typed frames instead of these lines with binary peers)
+ * Reply:   OK:sequenceId[:CHECKSUM=crc32c] or KO:sequenceId
+ * Bodies:  back to back in manifest order, each a marker byte, then for FILE_DATA exactly
+ *          size bytes and an 8-byte CRC32C trailer when checksummed. A file the sender can
+ *          no longer read as listed is sent as FILE_SKIPPED with no body.
+ * Verdict: OK:sequenceId[:FAILED=k], followed by the k manifest indexes that were not saved
+ */
+public final class BatchTransfer {
+
+    public static final int MAX_FILES = 100000;
+    private static final int FILE_SKIPPED = 0;
+    private static final int FILE_DATA = 1;
+    private static final long ZERO_COPY_MIN_SIZE = 1024L * 1024L; // Smaller bodies are copied into the stream buffer
+
+    private BatchTransfer() {
+    }
+
+    /**
+     * Incoming item task for one manifest entry. The name is reduced to its last path
+     * element so a batch can only write into the mailbox.
+     * @throws IllegalArgumentException if the entry is invalid
+     */
+    public static TransferTask manifestItem(long size, String name, String remoteIP) {
+        String fileName = name != null ? new File(name).getName() : "";
+        if (size < 0 || fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+            throw new IllegalArgumentException("Invalid manifest entry: " + size + ":" + name);
+        }
+        return new TransferTask(fileName, remoteIP, size, TransferTask.TransferDirection.INCOMING);
+    }
+    
+    /**
+     * Send one file's body. Large files are flushed ahead and sent with transferTo when a
+     * socket channel is given; small ones are copied into the buffered stream so many of
+     * them share a socket write.
+     * @return false if the file no longer matches the manifest and was sent as skipped
+     */
+    public static boolean sendFile(DataOutputStream out, WritableByteChannel channel, File file, long size,
+                                   boolean checksummed, TransferProgress progress) throws IOException {
+        if (!file.isFile() || file.length() != size) {
+            out.writeByte(FILE_SKIPPED);
+            progress.advance(size);
+            return false;
+        }
+
+        out.writeByte(FILE_DATA);
+        Checksum checksum = PayloadChecksum.create(checksummed);
+        if (channel != null && size >= ZERO_COPY_MIN_SIZE) {
+            out.flush();
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ChannelTransfer.sendZeroCopy(source, 0, size, channel, progress, checksum);
+            }
+        } else {
+            try (FileInputStream in = new FileInputStream(file)) {
+                ChannelTransfer.sendStream(in, out, size, progress, checksum);
+            }
+        }
+        if (checksum != null) {
+            // Not PayloadChecksum.writeTrailer: that flushes, which would cost a write per small file
+            out.writeLong(checksum.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Receive one file's body into target
+     * @return false if the sender skipped the file (target is not created)
+     * @throws ChecksumMismatchException if checksummed and the trailer does not match; the
+     *         stream is still positioned at the next file
+     */
+    public static boolean receiveFile(DataInputStream in, File target, long size, boolean checksummed,
+                                      TransferProgress progress) throws IOException {
+        int marker = in.readUnsignedByte();
+        if (marker == FILE_SKIPPED) {
+            progress.advance(size);
+            return false;
+        }
+        if (marker != FILE_DATA) {
+            throw new IOException("Invalid batch file marker " + marker);
+        }
+
+        Checksum checksum = PayloadChecksum.create(checksummed);
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            ChannelTransfer.receiveStream(in, out, size, progress, checksum);
+        }
+        if (checksum != null) {
+            PayloadChecksum.verifyTrailer(in, checksum, target.getName());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,160 @@
+package com.filetransfer.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-framed Deflate stream for compressed transfers.
+ *
+ * Each block is sent as: type (byte) | raw length (int) | payload length (int) | payload.
+ * Blocks are independent, so the sender can switch between compressed and raw blocks at any time:
+ * when a block does not shrink by at least 10%, the following blocks are sent raw without even
+ * trying (backing off up to MAX_SKIP_BLOCKS), then compression is sampled again.
+ */
+public final class BlockCompression {
+    
+    public static final String CODEC_DEFLATE = "deflate";
+    
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int HEADER_SIZE = 9;
+    private static final byte TYPE_RAW = 0;
+    private static final byte TYPE_DEFLATE = 1;
+    private static final int MIN_SKIP_BLOCKS = 8;
+    private static final int MAX_SKIP_BLOCKS = 64; // At most 8 MB of raw data between samples
+    
+    private BlockCompression() {
+    }
+    
+    /**
+     * Send count bytes of the file starting at position as compressed blocks.
+     * The checksum (if not null) covers the uncompressed bytes.
+     */
+    public static void send(FileChannel source, long position, long count, DataOutputStream out,
+                            TransferProgress progress, Checksum checksum) throws IOException {
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] packed = new byte[BLOCK_SIZE];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        int skipBlocks = 0;
+        int backoff = 0;
+        
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                int length = (int) Math.min(BLOCK_SIZE, remaining);
+                readFully(source, position, raw, length);
+                if (checksum != null) {
+                    checksum.update(raw, 0, length);
+                }
+                
+                int packedLength = -1;
+                if (skipBlocks > 0) {
+                    skipBlocks--;
+                } else {
+                    deflater.reset();
+                    deflater.setInput(raw, 0, length);
+                    deflater.finish();
+                    packedLength = deflater.deflate(packed, 0, length - length / 10);
+                    if (deflater.finished()) {
+                        backoff = 0;
+                    } else {
+                        // Incompressible: stop trying for a while
+                        packedLength = -1;
+                        backoff = backoff == 0 ? MIN_SKIP_BLOCKS : Math.min(MAX_SKIP_BLOCKS, backoff * 2);
+                        skipBlocks = backoff;
+                    }
+                }
+                
+                if (packedLength >= 0) {
+                    out.writeByte(TYPE_DEFLATE);
+                    out.writeInt(length);
+                    out.writeInt(packedLength);
+                    out.write(packed, 0, packedLength);
+                    progress.recordWireBytes(HEADER_SIZE + packedLength);
+                } else {
+                    out.writeByte(TYPE_RAW);
+                    out.writeInt(length);
+                    out.writeInt(length);
+                    out.write(raw, 0, length);
+                    progress.recordWireBytes(HEADER_SIZE + length);
+                }
+                
+                position += length;
+                remaining -= length;
+                progress.advance(length);
+            }
+            out.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Receive compressed blocks until count raw bytes have been written at position
+     */
+    public static void receive(DataInputStream in, FileChannel target, long position, long count,
+                               TransferProgress progress, Checksum checksum) throws IOException {
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] packed = new byte[BLOCK_SIZE];
+        Inflater inflater = new Inflater(true);
+        
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                int packedLength = in.readInt();
+                if (length <= 0 || length > BLOCK_SIZE || length > remaining
+                        || packedLength < 0 || packedLength > BLOCK_SIZE) {
+                    throw new IOException("Corrupt compressed stream: bad block header");
+                }
+                
+                if (type == TYPE_RAW) {
+                    in.readFully(raw, 0, length);
+                } else if (type == TYPE_DEFLATE) {
+                    in.readFully(packed, 0, packedLength);
+                    inflater.reset();
+                    inflater.setInput(packed, 0, packedLength);
+                    try {
+                        if (inflater.inflate(raw, 0, length) != length || !inflater.finished()) {
+                            throw new IOException("Corrupt compressed stream: block size mismatch");
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupt compressed stream: " + e.getMessage());
+                    }
+                } else {
+                    throw new IOException("Corrupt compressed stream: unknown block type " + type);
+                }
+                
+                if (checksum != null) {
+                    checksum.update(raw, 0, length);
+                }
+                ByteBuffer block = ByteBuffer.wrap(raw, 0, length);
+                while (block.hasRemaining()) {
+                    position += target.write(block, position);
+                }
+                remaining -= length;
+                progress.recordWireBytes(HEADER_SIZE + (type == TYPE_RAW ? length : packedLength));
+                progress.advance(length);
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    private static void readFully(FileChannel source, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (source.read(target, position + target.position()) == -1) {
+                throw new EOFException("File ended before " + length + " bytes could be read");
+            }
+        }
+    }
+}
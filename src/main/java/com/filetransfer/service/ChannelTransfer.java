@@ -0,0 +1,271 @@
+package com.filetransfer.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Checksum;
+
+/**
+ * Copy loops shared by the send and receive paths.
+ * Loops taking a Checksum update it with every byte they move (null skips it).
+ * Every chunk is paced against the transfer's rate limits (see TransferProgress).
+ */
+public final class ChannelTransfer {
+
+    private static final long MIN_CHUNK_SIZE = 256L * 1024L;
+    private static final long MAX_CHUNK_SIZE = 8L * 1024L * 1024L;
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+    private static final long MAP_WINDOW_SIZE = 64L * 1024L * 1024L;
+
+    private static volatile int streamBufferSize = 8192;
+
+    // sun.misc.Unsafe.invokeCleaner, to unmap a window as soon as it is full; null leaves it to the GC
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available: windows are unmapped when collected
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private ChannelTransfer() {
+    }
+
+    /**
+     * Chunk size of the stream copy loops (app.transfer.bufferSize)
+     */
+    public static void setStreamBufferSize(int bytes) {
+        streamBufferSize = bytes;
+    }
+
+    /**
+     * Send a file region with FileChannel.transferTo (no user-space copy).
+     * The region is moved in chunks so progress is still reported per percent.
+     * The kernel never shows the bytes to a checksum, so a checksummed region goes
+     * through sendDirect instead, which reads each byte once for both.
+     */
+    public static void sendZeroCopy(FileChannel source, long position, long count, WritableByteChannel target,
+                                    TransferProgress progress, Checksum checksum) throws IOException {
+        if (checksum != null) {
+            sendDirect(source, position, count, target, progress, checksum);
+            return;
+        }
+        long chunkSize = chunkSize(count);
+        long end = position + count;
+
+        while (position < end) {
+            long chunkEnd = position + Math.min(progress.limitChunk(chunkSize), end - position);
+            while (position < chunkEnd) {
+                long sent = source.transferTo(position, chunkEnd - position, target);
+                if (sent <= 0 && position >= source.size()) {
+                    throw new EOFException("File ended after " + (count - (end - position)) + " of " + count + " bytes");
+                }
+                position += sent;
+                progress.advance(sent);
+                progress.pace(sent);
+            }
+        }
+    }
+
+    /**
+     * Send a file region through one direct buffer, checksumming each read as it is written out.
+     * The data never passes through the Java heap (counterpart of receiveDirect).
+     */
+    public static void sendDirect(FileChannel source, long position, long count, WritableByteChannel target,
+                                  TransferProgress progress, Checksum checksum) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(DIRECT_BUFFER_SIZE, count)));
+        long remaining = count;
+
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(progress.limitChunk(buffer.capacity()), remaining));
+            int bytesRead = source.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("File ended after " + (count - remaining) + " of " + count + " bytes");
+            }
+            buffer.flip();
+            update(checksum, buffer);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            position += bytesRead;
+            remaining -= bytesRead;
+            progress.advance(bytesRead);
+            progress.pace(bytesRead);
+        }
+    }
+
+    /**
+     * Send bytes through a heap buffer (fallback engine)
+     */
+    public static void sendStream(InputStream in, OutputStream out, long count,
+                                  TransferProgress progress, Checksum checksum) throws IOException {
+        byte[] buffer = new byte[streamBufferSize];
+        long remaining = count;
+
+        while (remaining > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(progress.limitChunk(buffer.length), remaining));
+            if (bytesRead == -1) {
+                throw new EOFException("File ended after " + (count - remaining) + " of " + count + " bytes");
+            }
+            if (checksum != null) {
+                checksum.update(buffer, 0, bytesRead);
+            }
+            out.write(buffer, 0, bytesRead);
+            remaining -= bytesRead;
+            progress.advance(bytesRead);
+            progress.pace(bytesRead);
+        }
+    }
+
+    /**
+     * Receive exactly count bytes from a socket channel into a file region.
+     * Socket reads land in one large direct buffer that is written straight to the
+     * file channel, so the data never passes through the Java heap.
+     */
+    public static void receiveDirect(ReadableByteChannel source, FileChannel target, long position, long count,
+                                     TransferProgress progress, Checksum checksum) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(DIRECT_BUFFER_SIZE, count)));
+        long remaining = count;
+
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(progress.limitChunk(buffer.capacity()), remaining));
+            int bytesRead = source.read(buffer);
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed after " + (count - remaining) + " of " + count + " bytes");
+            }
+            buffer.flip();
+            update(checksum, buffer);
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            remaining -= bytesRead;
+            progress.advance(bytesRead);
+            progress.pace(bytesRead);
+        }
+    }
+
+    /**
+     * Receive exactly count bytes into a file region through a sliding window of mapped buffers.
+     * Socket reads land directly in the mapped pages, and each window is unmapped once it is
+     * full, so at most one is live. The target should already be preallocated to its final length.
+     * On failure the file is truncated to the bytes actually received, so its length
+     * stays a valid resume offset.
+     */
+    public static void receiveMapped(ReadableByteChannel source, FileChannel target, long position, long count,
+                                     TransferProgress progress, Checksum checksum) throws IOException {
+        long end = position + count;
+        long received = position;
+
+        try {
+            while (received < end) {
+                long windowSize = Math.min(MAP_WINDOW_SIZE, end - received);
+                MappedByteBuffer window = target.map(FileChannel.MapMode.READ_WRITE, received, windowSize);
+                try {
+                    while (window.position() < window.capacity()) {
+                        int start = window.position();
+                        window.limit((int) (start + progress.limitChunk(window.capacity() - start)));
+                        int bytesRead = source.read(window);
+                        if (bytesRead == -1) {
+                            throw new EOFException("Connection closed after " + (received + window.position() - position)
+                                + " of " + count + " bytes");
+                        }
+                        if (checksum != null) {
+                            // The bytes just landed in the window, still hot in the CPU cache
+                            checksum.update(window.duplicate().position(start).limit(start + bytesRead));
+                        }
+                        progress.advance(bytesRead);
+                        progress.pace(bytesRead);
+                    }
+                } finally {
+                    // Also before the truncate below, which some platforms refuse on a mapped file
+                    unmap(window);
+                }
+                received += windowSize;
+            }
+        } catch (IOException e) {
+            try {
+                target.truncate(received);
+            } catch (IOException ignored) {
+                // Some platforms refuse to truncate a mapped file; the caller discards it then
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Receive exactly count bytes through a heap buffer (fallback engine)
+     */
+    public static void receiveStream(InputStream in, OutputStream out, long count,
+                                     TransferProgress progress, Checksum checksum) throws IOException {
+        byte[] buffer = new byte[streamBufferSize];
+        long remaining = count;
+
+        while (remaining > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(progress.limitChunk(buffer.length), remaining));
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed after " + (count - remaining) + " of " + count + " bytes");
+            }
+            if (checksum != null) {
+                checksum.update(buffer, 0, bytesRead);
+            }
+            out.write(buffer, 0, bytesRead);
+            remaining -= bytesRead;
+            progress.advance(bytesRead);
+            progress.pace(bytesRead);
+        }
+    }
+
+    /**
+     * Release a mapping now rather than when the collector finds the buffer unreachable.
+     * The buffer must not be touched afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // The mapping goes when the buffer is collected
+        }
+    }
+
+    /**
+     * Feed the buffer's remaining bytes to the checksum, leaving its position unchanged
+     */
+    static void update(Checksum checksum, ByteBuffer buffer) {
+        if (checksum != null) {
+            int start = buffer.position();
+            checksum.update(buffer);
+            buffer.position(start);
+        }
+    }
+
+    /**
+     * Chunk size for channel copies: about 1% of the transfer, clamped to sane bounds
+     */
+    static long chunkSize(long count) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, count / 100));
+    }
+}
@@ -0,0 +1,15 @@
+package com.filetransfer.service;
+
+import java.io.IOException;
+
+/**
+ * The payload checksum computed on arrival differs from the sender's trailer
+ */
+public class ChecksumMismatchException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public ChecksumMismatchException(String message) {
+        super(message);
+    }
+}
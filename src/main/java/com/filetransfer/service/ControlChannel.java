@@ -0,0 +1,562 @@
+package com.filetransfer.service;
+
+import com.filetransfer.model.TransferTask;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The control messages of one connection: binary frames (see ControlCodec) with peers that
+ * answered the binary handshake, text lines with older ones. Payload bytes never go through
+ * it, and every message is flushed as it is sent, so the transfer code can take over the
+ * socket right after a reply.
+ *
+ * The accepting side tells the two apart by the first byte, so one listener serves both.
+ */
+public class ControlChannel {
+
+    public static final String HANDSHAKE = "miyabi69";
+    private static final String STRIPE_PREFIX = "STRIPE:";
+    private static final byte[] START_LINE = "START\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /** What the first message of an accepted connection asks for */
+    public enum Kind { HANDSHAKE, TRANSFER_REQUEST, BATCH_REQUEST, STRIPE, MUX, UNKNOWN }
+
+    private final boolean binary;
+    private final InputStream in;          // Binary frames, or text lines on the connecting side
+    private final BufferedReader reader;   // Text lines on the accepting side
+    private final OutputStream out;
+    private final ControlCodec codec;
+
+    private ControlChannel(boolean binary, InputStream in, BufferedReader reader, OutputStream out) {
+        this.binary = binary;
+        this.in = in;
+        this.reader = reader;
+        this.out = out;
+        this.codec = binary ? new ControlCodec() : null;
+    }
+
+    /**
+     * Control channel of an outgoing connection. Replies are read without read-ahead,
+     * since binary data (delta signatures) may follow them.
+     */
+    public static ControlChannel open(Socket socket, boolean binary) throws IOException {
+        return new ControlChannel(binary, socket.getInputStream(), null,
+            new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Control channel of an accepted connection, in the protocol of its first byte.
+     * Reads may be buffered here: a sender never sends payload before our reply.
+     * @return null if the peer closed the connection without sending anything
+     */
+    public static ControlChannel accept(Socket socket) throws IOException {
+        return accept(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    private static ControlChannel accept(InputStream stream, OutputStream output) throws IOException {
+        PushbackInputStream input = new PushbackInputStream(stream);
+        int first = input.read();
+        if (first == -1) {
+            return null;
+        }
+        input.unread(first);
+        return create(first == ControlCodec.MARKER, input, output);
+    }
+
+    private static ControlChannel create(boolean binary, InputStream input, OutputStream output) {
+        OutputStream out = new BufferedOutputStream(output);
+        if (binary) {
+            return new ControlChannel(true, new BufferedInputStream(input), null, out);
+        }
+        return new ControlChannel(false, null, new BufferedReader(new InputStreamReader(input)), out);
+    }
+
+    /**
+     * Control channel of an accepted connection whose first message was already read without
+     * blocking (see firstMessageLength). data holds everything read so far; the bytes after the
+     * first message, such as a batch manifest, are read before the socket.
+     */
+    public static ControlChannel accepted(Socket socket, byte[] data, int messageLength, int length)
+            throws IOException {
+        InputStream input = socket.getInputStream();
+        if (length > messageLength) {
+            input = new SequenceInputStream(new ByteArrayInputStream(data, messageLength, length - messageLength), input);
+        }
+        return create((data[0] & 0xff) == ControlCodec.MARKER, input, socket.getOutputStream());
+    }
+
+    /**
+     * Length of the first message of an accepted connection, if the bytes read so far hold all of it
+     * @return the length, or -1 if more bytes are needed
+     * @throws IOException if the first line is too long to be a command
+     */
+    public static int firstMessageLength(byte[] data, int length) throws IOException {
+        if (length == 0) {
+            return -1;
+        }
+        if ((data[0] & 0xff) == ControlCodec.MARKER) {
+            return ControlCodec.frameLength(data, length);
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                return i + 1;
+            }
+        }
+        if (length >= MAX_LINE_LENGTH) {
+            throw new IOException("Command line too long");
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a complete first message found by firstMessageLength
+     */
+    public static Command parseCommand(byte[] data, int messageLength) throws IOException {
+        return accept(new ByteArrayInputStream(data, 0, messageLength), OutputStream.nullOutputStream())
+            .receiveCommand();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Send the handshake, or answer it with the same token
+     */
+    public void sendHandshake() throws IOException {
+        if (!binary) {
+            sendLine(HANDSHAKE);
+            return;
+        }
+        // The trailing newline makes a text-only peer see one complete (invalid) line and hang up
+        codec.begin(ControlCodec.HANDSHAKE).putText(ControlCodec.TOKEN, HANDSHAKE)
+            .putFlag(ControlCodec.LINE_END).writeTo(out);
+        out.flush();
+    }
+
+    // Accepting side
+
+    /**
+     * Read the first message of an accepted connection
+     * @return the message, or null at end of stream
+     */
+    public Command receiveCommand() throws IOException {
+        if (!binary) {
+            String line = reader.readLine();
+            return line != null ? Command.fromLine(line) : null;
+        }
+        if (!codec.read(in)) {
+            return null;
+        }
+        switch (codec.getType()) {
+            case ControlCodec.HANDSHAKE:
+                String token = codec.getText(ControlCodec.TOKEN);
+                return new Command(HANDSHAKE.equals(token) ? Kind.HANDSHAKE : Kind.UNKNOWN, "HANDSHAKE " + token, null, null);
+            case ControlCodec.TRANSFER_REQUEST:
+            case ControlCodec.BATCH_REQUEST:
+                boolean batch = codec.getType() == ControlCodec.BATCH_REQUEST;
+                Kind kind = batch ? Kind.BATCH_REQUEST : Kind.TRANSFER_REQUEST;
+                try {
+                    TransferRequest request = decodeRequest(batch);
+                    return new Command(kind, request.toLine(), request, null);
+                } catch (IllegalArgumentException e) {
+                    return new Command(kind, "invalid " + kind, null, e);
+                }
+            default:
+                return new Command(Kind.UNKNOWN, "message type " + codec.getType(), null, null);
+        }
+    }
+
+    /**
+     * Read the n manifest entries that follow a batch request
+     * @throws IllegalArgumentException if an entry is malformed
+     */
+    public List<TransferTask> receiveManifest(int count, String remoteIP) throws IOException {
+        List<TransferTask> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (binary) {
+                if (!codec.read(in)) {
+                    throw new EOFException("Manifest ended after " + i + " of " + count + " files");
+                }
+                if (codec.getType() != ControlCodec.MANIFEST_ENTRY || !codec.has(ControlCodec.SIZE)) {
+                    throw new IllegalArgumentException("Invalid manifest entry " + i);
+                }
+                items.add(BatchTransfer.manifestItem(codec.getLong(ControlCodec.SIZE, -1),
+                    codec.getText(ControlCodec.NAME), remoteIP));
+            } else {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new EOFException("Manifest ended after " + i + " of " + count + " files");
+                }
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Invalid manifest line: " + line);
+                }
+                items.add(BatchTransfer.manifestItem(Long.parseLong(line.substring(0, colon)),
+                    line.substring(colon + 1), remoteIP));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Send an OK/KO reply; options may be null
+     */
+    public void sendReply(String verdict, String sequenceId, Map<String, String> options) throws IOException {
+        if (!binary) {
+            sendLine(TransferRequest.reply(verdict, sequenceId, options));
+            return;
+        }
+        codec.begin("OK".equals(verdict) ? ControlCodec.OK : ControlCodec.KO)
+            .putText(ControlCodec.SEQUENCE, sequenceId);
+        if (options != null) {
+            encodeOptions(options);
+        }
+        codec.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Send one index line of a batch verdict
+     */
+    public void sendIndex(int index) throws IOException {
+        if (!binary) {
+            sendLine(String.valueOf(index));
+            return;
+        }
+        codec.begin(ControlCodec.INDEX).putInt(ControlCodec.POSITION, index).writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Wait for the START line of a sender that negotiated it; the payload follows it.
+     * Read from the socket itself, since the buffered control reader could swallow payload bytes.
+     */
+    public static void receiveStart(Socket socket) throws IOException {
+        byte[] line = socket.getInputStream().readNBytes(START_LINE.length);
+        if (!Arrays.equals(line, START_LINE)) {
+            throw new IOException("Sender did not start the approved transfer");
+        }
+    }
+
+    // Connecting side
+
+    /**
+     * Read the handshake answer
+     * @return the peer's token, or null if it closed the connection or answered something else
+     */
+    public String receiveHandshake() throws IOException {
+        if (!binary) {
+            return readLine();
+        }
+        if (!codec.read(in) || codec.getType() != ControlCodec.HANDSHAKE) {
+            return null;
+        }
+        return codec.getText(ControlCodec.TOKEN);
+    }
+
+    public void sendRequest(TransferRequest request) throws IOException {
+        if (!binary) {
+            sendLine(request.toLine());
+            return;
+        }
+        codec.begin(request.isBatch() ? ControlCodec.BATCH_REQUEST : ControlCodec.TRANSFER_REQUEST)
+            .putText(ControlCodec.SEQUENCE, request.getSequenceId())
+            .putText(ControlCodec.NAME, request.getFileName())
+            .putLong(ControlCodec.SIZE, request.getFileSize());
+        encodeOptions(request.getOptions());
+        codec.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Tell the receiver the payload follows, as a text line in either protocol (START option)
+     */
+    public void sendStart() throws IOException {
+        out.write(START_LINE);
+        out.flush();
+    }
+
+    /**
+     * Send the manifest of a batch request, all entries in one write
+     */
+    public void sendManifest(List<TransferTask> items) throws IOException {
+        for (TransferTask item : items) {
+            if (binary) {
+                codec.begin(ControlCodec.MANIFEST_ENTRY)
+                    .putLong(ControlCodec.SIZE, item.getFileSize())
+                    .putText(ControlCodec.NAME, item.getFileName())
+                    .writeTo(out);
+            } else {
+                out.write((item.getFileSize() + ":" + item.getFileName() + "\n").getBytes(Charset.defaultCharset()));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read an OK/KO reply
+     * @return the reply, or null at end of stream
+     */
+    public Reply receiveReply() throws IOException {
+        if (!binary) {
+            String line = readLine();
+            return line != null ? Reply.fromLine(line) : null;
+        }
+        if (!codec.read(in)) {
+            return null;
+        }
+        if (codec.getType() != ControlCodec.OK && codec.getType() != ControlCodec.KO) {
+            throw new IOException("Unexpected control message type " + codec.getType());
+        }
+        String sequenceId = codec.getText(ControlCodec.SEQUENCE);
+        return new Reply(codec.getType() == ControlCodec.OK ? "OK" : "KO",
+            sequenceId != null ? sequenceId : "", decodeOptions());
+    }
+
+    /**
+     * Read one index of a batch verdict
+     * @return the index, or -1 if the message is missing or malformed
+     */
+    public int receiveIndex() throws IOException {
+        if (!binary) {
+            String line = readLine();
+            try {
+                return line != null ? Integer.parseInt(line.trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        if (!codec.read(in) || codec.getType() != ControlCodec.INDEX) {
+            return -1;
+        }
+        return codec.getInt(ControlCodec.POSITION, -1);
+    }
+
+    // Text lines
+
+    /**
+     * Send a text line whatever the protocol, for the commands that only exist as text
+     * (MUX and STRIPE, sent by every version on connections of their own)
+     */
+    public void sendLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(Charset.defaultCharset()));
+        out.flush();
+    }
+
+    private String readLine() throws IOException {
+        return reader != null ? reader.readLine() : TransferRequest.readLine(in);
+    }
+
+    // Option fields
+
+    private static final String[] OPTION_KEYS = {
+        TransferRequest.STRIPES, TransferRequest.RESUME, TransferRequest.OFFSET, TransferRequest.REASON,
+        TransferRequest.COMPRESS, TransferRequest.CHECKSUM, TransferRequest.DELTA, TransferRequest.HASH,
+        TransferRequest.HAVE, TransferRequest.FILES, TransferRequest.FAILED
+    };
+    private static final int[] OPTION_TAGS = {
+        ControlCodec.STRIPES, ControlCodec.RESUME, ControlCodec.OFFSET, ControlCodec.REASON,
+        ControlCodec.COMPRESS, ControlCodec.CHECKSUM, ControlCodec.DELTA, ControlCodec.HASH,
+        ControlCodec.HAVE, ControlCodec.FILES, ControlCodec.FAILED
+    };
+
+    /**
+     * Put each option in its typed field; a value that does not fit its type, or a key
+     * without a field, goes as a generic KEY=value field
+     */
+    private void encodeOptions(Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            int tag = tagOf(option.getKey());
+            String value = option.getValue();
+            try {
+                if (tag == ControlCodec.RESUME || tag == ControlCodec.DELTA || tag == ControlCodec.HAVE) {
+                    codec.putFlag(tag);
+                } else if (tag == ControlCodec.STRIPES || tag == ControlCodec.FILES || tag == ControlCodec.FAILED) {
+                    codec.putInt(tag, Integer.parseInt(value));
+                } else if (tag == ControlCodec.OFFSET) {
+                    codec.putLong(tag, Long.parseLong(value));
+                } else if (tag == ControlCodec.HASH) {
+                    codec.putBytes(tag, HexFormat.of().parseHex(value));
+                } else if (tag >= 0) {
+                    codec.putText(tag, value);
+                } else {
+                    codec.putText(ControlCodec.OPTION, option.getKey() + "=" + value);
+                }
+            } catch (IllegalArgumentException e) {
+                codec.putText(ControlCodec.OPTION, option.getKey() + "=" + value);
+            }
+        }
+    }
+
+    private Map<String, String> decodeOptions() {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < OPTION_TAGS.length; i++) {
+            int tag = OPTION_TAGS[i];
+            if (!codec.has(tag)) {
+                continue;
+            }
+            String value;
+            if (tag == ControlCodec.RESUME || tag == ControlCodec.DELTA || tag == ControlCodec.HAVE) {
+                value = "1";
+            } else if (tag == ControlCodec.STRIPES || tag == ControlCodec.FILES || tag == ControlCodec.FAILED) {
+                value = String.valueOf(codec.getInt(tag, 0));
+            } else if (tag == ControlCodec.OFFSET) {
+                value = String.valueOf(codec.getLong(tag, 0));
+            } else if (tag == ControlCodec.HASH) {
+                value = codec.getHex(tag);
+            } else {
+                value = codec.getText(tag);
+            }
+            options.put(OPTION_KEYS[i], value);
+        }
+        codec.forEachOption(option -> {
+            int eq = option.indexOf('=');
+            if (eq > 0) {
+                options.putIfAbsent(option.substring(0, eq), option.substring(eq + 1));
+            }
+        });
+        return options;
+    }
+
+    private static int tagOf(String key) {
+        for (int i = 0; i < OPTION_KEYS.length; i++) {
+            if (OPTION_KEYS[i].equals(key)) {
+                return OPTION_TAGS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Build a request from the frame just read. Unlike the text line, the name is a field
+     * of its own, so it may contain anything.
+     * @throws IllegalArgumentException if a field is missing
+     */
+    private TransferRequest decodeRequest(boolean batch) {
+        String sequenceId = codec.getText(ControlCodec.SEQUENCE);
+        String fileName = codec.getText(ControlCodec.NAME);
+        if (sequenceId == null || sequenceId.isEmpty() || fileName == null || fileName.isEmpty()) {
+            throw new IllegalArgumentException("Invalid transfer request format");
+        }
+        if (!codec.has(ControlCodec.SIZE)) {
+            throw new NumberFormatException("Missing file size");
+        }
+        TransferRequest request = TransferRequest.create(batch, sequenceId, fileName,
+            codec.getLong(ControlCodec.SIZE, 0));
+        request.getOptions().putAll(decodeOptions());
+        return request;
+    }
+
+    /**
+     * First message of an accepted connection
+     */
+    public static final class Command {
+
+        private final Kind kind;
+        private final String text;
+        private final TransferRequest request;
+        private final IllegalArgumentException error;
+
+        private Command(Kind kind, String text, TransferRequest request, IllegalArgumentException error) {
+            this.kind = kind;
+            this.text = text;
+            this.request = request;
+            this.error = error;
+        }
+
+        static Command fromLine(String line) {
+            Kind kind = Kind.UNKNOWN;
+            if (HANDSHAKE.equals(line)) {
+                kind = Kind.HANDSHAKE;
+            } else if (PeerConnection.HELLO.equals(line)) {
+                kind = Kind.MUX;
+            } else if (line.startsWith(TransferRequest.PREFIX)) {
+                kind = Kind.TRANSFER_REQUEST;
+            } else if (line.startsWith(TransferRequest.BATCH_PREFIX)) {
+                kind = Kind.BATCH_REQUEST;
+            } else if (line.startsWith(STRIPE_PREFIX)) {
+                kind = Kind.STRIPE;
+            }
+            return new Command(kind, line, null, null);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * The message as a text line, for logs and the text-only commands
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the request is malformed
+         *         (NumberFormatException if only the size is invalid)
+         */
+        public TransferRequest getRequest() {
+            if (error != null) {
+                throw error;
+            }
+            return request != null ? request : TransferRequest.parse(text);
+        }
+    }
+
+    /**
+     * OK/KO reply and its options
+     */
+    public static final class Reply {
+
+        private final String verdict;
+        private final String sequenceId;
+        private final Map<String, String> options;
+
+        private Reply(String verdict, String sequenceId, Map<String, String> options) {
+            this.verdict = verdict;
+            this.sequenceId = sequenceId;
+            this.options = options;
+        }
+
+        static Reply fromLine(String line) {
+            String[] parts = line.split(":", -1);
+            return new Reply(parts[0], parts.length > 1 ? parts[1] : "", TransferRequest.replyOptions(line));
+        }
+
+        public boolean isOk() {
+            return "OK".equals(verdict);
+        }
+
+        public boolean isKo() {
+            return "KO".equals(verdict);
+        }
+
+        public String getSequenceId() {
+            return sequenceId;
+        }
+
+        public String getOption(String key) {
+            return options.get(key);
+        }
+
+        public Map<String, String> getOptions() {
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return TransferRequest.reply(verdict, sequenceId, options);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.filetransfer.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.function.Consumer;
+
+/**
+ * Binary control frames, used instead of text lines with peers that accept them at handshake.
+ *
+ *   byte 0xF7, byte version, byte type, u16 bodyLength, body
+ *
+ * The marker can never start a text line, so a receiver tells the two protocols apart by the
+ * first byte. The body is a list of typed fields: a tag byte whose top three bits give the
+ * value kind (flag, int, long, text, bytes), then the value. Unknown tags can therefore be
+ * skipped, and new fields do not need a new version.
+ *
+ * One codec is used per connection. Its buffers are reused, and parsing a frame only records
+ * where each field starts; nothing is allocated until a text field is read.
+ */
+public final class ControlCodec {
+
+    public static final int MARKER = 0xF7;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int MAX_BODY_SIZE = 0xFFFF;
+
+    // Message types
+    public static final int HANDSHAKE = 1;
+    public static final int TRANSFER_REQUEST = 2;
+    public static final int BATCH_REQUEST = 3;
+    public static final int MANIFEST_ENTRY = 4;
+    public static final int OK = 5;
+    public static final int KO = 6;
+    public static final int INDEX = 7;
+
+    // Value kinds, the top three bits of a tag
+    private static final int FLAG = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int TEXT = 3;
+    private static final int BYTES = 4;
+
+    // Field tags
+    public static final int SEQUENCE = TEXT << 5 | 1;
+    public static final int NAME = TEXT << 5 | 2;
+    public static final int SIZE = LONG << 5 | 3;
+    public static final int TOKEN = TEXT << 5 | 4;
+    public static final int POSITION = INT << 5 | 5;
+    public static final int OPTION = TEXT << 5 | 6;      // KEY=value for options without a field of their own
+    public static final int STRIPES = INT << 5 | 7;
+    public static final int RESUME = FLAG << 5 | 8;
+    public static final int OFFSET = LONG << 5 | 9;
+    public static final int LINE_END = FLAG << 5 | 10;   // Byte '\n': ends the handshake so text-only peers drop it at once
+    public static final int REASON = TEXT << 5 | 11;
+    public static final int COMPRESS = TEXT << 5 | 12;
+    public static final int CHECKSUM = TEXT << 5 | 13;
+    public static final int DELTA = FLAG << 5 | 14;
+    public static final int HASH = BYTES << 5 | 15;
+    public static final int HAVE = FLAG << 5 | 16;
+    public static final int FILES = INT << 5 | 17;
+    public static final int FAILED = INT << 5 | 18;
+
+    private byte[] out = new byte[256];
+    private int outLength;
+
+    private byte[] in = new byte[256];
+    private int inLength;
+    private int type;
+    private final int[] offsets = new int[256]; // Value offset of each tag in the current frame, -1 if absent
+
+    // Encoding
+
+    /**
+     * Start a new outgoing frame, discarding any unsent one
+     */
+    public ControlCodec begin(int messageType) {
+        out[0] = (byte) MARKER;
+        out[1] = (byte) VERSION;
+        out[2] = (byte) messageType;
+        outLength = HEADER_SIZE;
+        return this;
+    }
+
+    public ControlCodec putFlag(int tag) {
+        ensureOut(1);
+        out[outLength++] = (byte) tag;
+        return this;
+    }
+
+    public ControlCodec putInt(int tag, int value) {
+        ensureOut(5);
+        out[outLength++] = (byte) tag;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out[outLength++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public ControlCodec putLong(int tag, long value) {
+        ensureOut(9);
+        out[outLength++] = (byte) tag;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[outLength++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public ControlCodec putText(int tag, String value) {
+        return putBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ControlCodec putBytes(int tag, byte[] value) {
+        if (value.length > MAX_BODY_SIZE) {
+            throw new IllegalArgumentException("Control field too long");
+        }
+        ensureOut(3 + value.length);
+        out[outLength++] = (byte) tag;
+        out[outLength++] = (byte) (value.length >>> 8);
+        out[outLength++] = (byte) value.length;
+        System.arraycopy(value, 0, out, outLength, value.length);
+        outLength += value.length;
+        return this;
+    }
+
+    /**
+     * Write the frame started with begin (the caller flushes)
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        int bodyLength = outLength - HEADER_SIZE;
+        if (bodyLength > MAX_BODY_SIZE) {
+            throw new IOException("Control frame too long");
+        }
+        out[3] = (byte) (bodyLength >>> 8);
+        out[4] = (byte) bodyLength;
+        stream.write(out, 0, outLength);
+    }
+
+    private void ensureOut(int bytes) {
+        if (outLength + bytes > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, outLength + bytes));
+        }
+    }
+
+    // Decoding
+
+    /**
+     * Read the next frame, reading exactly its bytes from the stream
+     * @return false at end of stream
+     */
+    public boolean read(InputStream stream) throws IOException {
+        int marker = stream.read();
+        if (marker == -1) {
+            return false;
+        }
+        if (marker != MARKER) {
+            throw new IOException("Not a control frame");
+        }
+        readFully(stream, in, 0, HEADER_SIZE - 1);
+        int version = in[0] & 0xff;
+        if (version > VERSION) {
+            throw new IOException("Unsupported control protocol version " + version);
+        }
+        type = in[1] & 0xff;
+        inLength = (in[2] & 0xff) << 8 | (in[3] & 0xff);
+        if (inLength > in.length) {
+            in = new byte[Math.max(in.length * 2, inLength)];
+        }
+        readFully(stream, in, 0, inLength);
+
+        Arrays.fill(offsets, -1);
+        int position = 0;
+        while (position < inLength) {
+            int tag = in[position++] & 0xff;
+            int kind = tag >>> 5;
+            if (kind > BYTES || (kind >= TEXT && position + 2 > inLength)) {
+                throw new IOException("Malformed control frame");
+            }
+            offsets[tag] = position;
+            position += valueLength(tag, position);
+        }
+        if (position != inLength) {
+            throw new IOException("Malformed control frame");
+        }
+        return true;
+    }
+
+    /**
+     * Length of the frame at the start of data if all of it is there
+     * @return the frame length, or -1 if more bytes are needed
+     */
+    static int frameLength(byte[] data, int length) {
+        if (length < HEADER_SIZE) {
+            return -1;
+        }
+        int frameLength = HEADER_SIZE + ((data[3] & 0xff) << 8 | (data[4] & 0xff));
+        return length >= frameLength ? frameLength : -1;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean has(int tag) {
+        return offsets[tag] >= 0;
+    }
+
+    public int getInt(int tag, int defaultValue) {
+        int offset = offsets[tag];
+        if (offset < 0) {
+            return defaultValue;
+        }
+        return (in[offset] & 0xff) << 24 | (in[offset + 1] & 0xff) << 16
+            | (in[offset + 2] & 0xff) << 8 | (in[offset + 3] & 0xff);
+    }
+
+    public long getLong(int tag, long defaultValue) {
+        int offset = offsets[tag];
+        if (offset < 0) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (in[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Text field, or null if absent
+     */
+    public String getText(int tag) {
+        int offset = offsets[tag];
+        if (offset < 0) {
+            return null;
+        }
+        return new String(in, offset + 2, byteLength(offset), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bytes field as lower-case hex, or null if absent
+     */
+    public String getHex(int tag) {
+        int offset = offsets[tag];
+        if (offset < 0) {
+            return null;
+        }
+        return HexFormat.of().formatHex(in, offset + 2, offset + 2 + byteLength(offset));
+    }
+
+    /**
+     * Every OPTION field of the frame (a tag may repeat; offsets only keep the last one)
+     */
+    public void forEachOption(Consumer<String> action) {
+        int position = 0;
+        while (position < inLength) {
+            int tag = in[position++] & 0xff;
+            if (tag == OPTION) {
+                action.accept(new String(in, position + 2, byteLength(position), StandardCharsets.UTF_8));
+            }
+            position += valueLength(tag, position);
+        }
+    }
+
+    private int byteLength(int offset) {
+        return (in[offset] & 0xff) << 8 | (in[offset + 1] & 0xff);
+    }
+
+    /**
+     * Length of the value at offset; read has checked the kind and the length prefix
+     */
+    private int valueLength(int tag, int offset) {
+        switch (tag >>> 5) {
+            case FLAG: return 0;
+            case INT: return 4;
+            case LONG: return 8;
+            default: return 2 + byteLength(offset);
+        }
+    }
+
+    private static void readFully(InputStream stream, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = stream.read(buffer, offset, length);
+            if (read == -1) {
+                throw new EOFException("Control frame truncated");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.filetransfer.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Rolling-checksum delta transfer (the rsync algorithm).
+ *
+ * The receiver cuts its existing copy of the file into fixed blocks and sends a weak
+ * rolling checksum and an MD5 for each. The sender slides a window over the new file one
+ * byte at a time; where the window matches a block it sends a COPY instruction, everything
+ * else goes as LITERAL bytes. The receiver rebuilds the new file from both.
+ *
+ * Signatures: block size (int) | block count (int) | per block: weak (int), MD5 (16 bytes)
+ * Delta:      COPY (byte) first block (int) count (int) | LITERAL (byte) length (int) data | END (byte)
+ */
+public final class DeltaSync {
+
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MAX_LITERAL = 1024 * 1024;
+    private static final int READ_SIZE = 1024 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    private static final long MAX_COPY_RUN = 64L * 1024L * 1024L; // Long matches still reach the receiver regularly
+
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_LITERAL = 2;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * Block size for a base file: about the square root of its size, so the signature
+     * list and the cost of one changed byte both stay small
+     */
+    public static int blockSize(long baseSize) {
+        long size = (long) Math.sqrt((double) baseSize) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Hash every full block of the base file and send the signatures
+     */
+    public static void writeSignatures(File base, int blockSize, DataOutputStream out) throws IOException {
+        long count = base.length() / blockSize;
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+
+        out.writeInt(blockSize);
+        out.writeInt((int) count);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(base), READ_SIZE))) {
+            for (long i = 0; i < count; i++) {
+                in.readFully(block);
+                out.writeInt(weakChecksum(block, 0, blockSize));
+                out.write(md5.digest(block), 0, STRONG_LENGTH);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the signatures sent by writeSignatures
+     */
+    public static Signatures readSignatures(DataInputStream in) throws IOException {
+        int blockSize = in.readInt();
+        int count = in.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+                || count < 0 || count > Integer.MAX_VALUE / STRONG_LENGTH) {
+            throw new IOException("Invalid delta signatures: " + count + " blocks of " + blockSize + " bytes");
+        }
+
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new Signatures(blockSize, weak, strong);
+    }
+
+    /**
+     * Send the new file as COPY and LITERAL instructions against the signatures.
+     * The checksum (if not null) covers the new file's bytes in order.
+     */
+    public static void sendDelta(File source, Signatures signatures, DataOutputStream out,
+                                 TransferProgress progress, Checksum checksum) throws IOException {
+        int blockSize = signatures.blockSize;
+        byte[] buffer = new byte[MAX_LITERAL + 2 * blockSize + READ_SIZE];
+        DeltaWriter writer = new DeltaWriter(out, progress, checksum);
+
+        // buffer[literal, start) is unmatched data, buffer[start, start + blockSize) the window
+        int literal = 0;
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+
+        try (InputStream in = new FileInputStream(source)) {
+            while (true) {
+                if (!eof && end - start <= blockSize) {
+                    if (literal > 0) {
+                        System.arraycopy(buffer, literal, buffer, 0, end - literal);
+                        start -= literal;
+                        end -= literal;
+                        literal = 0;
+                    }
+                    int bytesRead = in.read(buffer, end, buffer.length - end);
+                    if (bytesRead == -1) {
+                        eof = true;
+                    } else {
+                        end += bytesRead;
+                    }
+                    continue;
+                }
+                if (end - start < blockSize) {
+                    break;
+                }
+
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int x = buffer[start + i] & 0xff;
+                        a += x;
+                        b += (blockSize - i) * x;
+                    }
+                    a &= 0xffff;
+                    b &= 0xffff;
+                    rolling = true;
+                }
+
+                int match = signatures.find(a | (b << 16), buffer, start);
+                if (match >= 0) {
+                    writer.literal(buffer, literal, start - literal);
+                    writer.copy(match, buffer, start, blockSize);
+                    start += blockSize;
+                    literal = start;
+                    rolling = false;
+                    continue;
+                }
+
+                if (end - start == blockSize) {
+                    break; // Last window of the file, nothing to roll into
+                }
+                if (start - literal >= MAX_LITERAL) {
+                    writer.literal(buffer, literal, start - literal);
+                    literal = start;
+                }
+
+                // Slide the window one byte
+                int out0 = buffer[start] & 0xff;
+                int in0 = buffer[start + blockSize] & 0xff;
+                a = (a - out0 + in0) & 0xffff;
+                b = (b - blockSize * out0 + a) & 0xffff;
+                start++;
+            }
+        }
+
+        // Whatever is left never matched a whole block
+        for (int offset = literal; offset < end; offset += MAX_LITERAL) {
+            writer.literal(buffer, offset, Math.min(MAX_LITERAL, end - offset));
+        }
+        writer.end();
+    }
+
+    /**
+     * Rebuild the new file into target from the delta stream and the base file
+     */
+    public static void receiveDelta(DataInputStream in, FileChannel base, int blockSize, FileChannel target,
+                                    long fileSize, TransferProgress progress, Checksum checksum) throws IOException {
+        long baseBlocks = base.size() / blockSize;
+        byte[] buffer = new byte[Math.max(MAX_LITERAL, READ_SIZE)];
+        long position = 0;
+
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END) {
+                break;
+            }
+
+            if (op == OP_COPY) {
+                long block = in.readInt();
+                long count = in.readInt();
+                long length = count * blockSize;
+                if (block < 0 || count <= 0 || block + count > baseBlocks || position + length > fileSize) {
+                    throw new IOException("Invalid delta: copy of blocks " + block + "+" + count);
+                }
+                long source = block * blockSize;
+                long copied = 0;
+                while (copied < length) {
+                    int chunk = (int) Math.min(buffer.length, length - copied);
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, chunk);
+                    while (data.hasRemaining()) {
+                        if (base.read(data, source + copied + data.position()) == -1) {
+                            throw new EOFException("Base file changed during delta transfer");
+                        }
+                    }
+                    write(target, position, buffer, chunk, checksum);
+                    position += chunk;
+                    copied += chunk;
+                    progress.advance(chunk);
+                }
+                progress.recordWireBytes(9);
+
+            } else if (op == OP_LITERAL) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_LITERAL || position + length > fileSize) {
+                    throw new IOException("Invalid delta: literal of " + length + " bytes");
+                }
+                in.readFully(buffer, 0, length);
+                write(target, position, buffer, length, checksum);
+                position += length;
+                progress.recordWireBytes(5 + length);
+                progress.advance(length);
+
+            } else {
+                throw new IOException("Invalid delta: unknown instruction " + op);
+            }
+        }
+
+        if (position != fileSize) {
+            throw new IOException("Invalid delta: rebuilt " + position + " of " + fileSize + " bytes");
+        }
+    }
+
+    private static void write(FileChannel target, long position, byte[] data, int length,
+                              Checksum checksum) throws IOException {
+        if (checksum != null) {
+            checksum.update(data, 0, length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+    }
+
+    /**
+     * Weak rolling checksum of a block (Adler-32 style, two 16-bit sums)
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * Block signatures of the receiver's copy, indexed by weak checksum
+     */
+    public static class Signatures {
+
+        private final int blockSize;
+        private final int[] weak;
+        private final byte[] strong;
+        private final int[] table; // Open addressing: block index + 1, 0 = empty
+        private final int mask;
+        private final MessageDigest md5 = md5();
+        private final byte[] digest = new byte[STRONG_LENGTH];
+
+        Signatures(int blockSize, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+
+            int capacity = Integer.highestOneBit(Math.max(16, weak.length * 2 - 1)) << 1;
+            this.table = new int[capacity];
+            this.mask = capacity - 1;
+            for (int i = 0; i < weak.length; i++) {
+                int slot = mix(weak[i]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+        }
+
+        /**
+         * Block whose content equals data[offset, offset + blockSize), or -1.
+         * The MD5 is only computed when the weak checksum matches.
+         */
+        int find(int weakChecksum, byte[] data, int offset) throws IOException {
+            boolean hashed = false;
+            for (int slot = mix(weakChecksum) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int block = table[slot] - 1;
+                if (weak[block] != weakChecksum) {
+                    continue;
+                }
+                if (!hashed) {
+                    md5.update(data, offset, blockSize);
+                    try {
+                        md5.digest(digest, 0, STRONG_LENGTH);
+                    } catch (DigestException e) {
+                        throw new IOException(e);
+                    }
+                    hashed = true;
+                }
+                if (Arrays.equals(strong, block * STRONG_LENGTH, (block + 1) * STRONG_LENGTH,
+                        digest, 0, STRONG_LENGTH)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return weak.length;
+        }
+
+        private static int mix(int value) {
+            return value * 0x9E3779B9;
+        }
+    }
+
+    /**
+     * Writes instructions, merging COPY runs of consecutive blocks
+     */
+    private static class DeltaWriter {
+
+        private final DataOutputStream out;
+        private final TransferProgress progress;
+        private final Checksum checksum;
+        private int copyFirst = -1;
+        private int copyCount;
+
+        DeltaWriter(DataOutputStream out, TransferProgress progress, Checksum checksum) {
+            this.out = out;
+            this.progress = progress;
+            this.checksum = checksum;
+        }
+
+        void copy(int block, byte[] data, int offset, int length) throws IOException {
+            if (copyFirst >= 0 && block == copyFirst + copyCount) {
+                copyCount++;
+                if ((long) copyCount * length >= MAX_COPY_RUN) {
+                    // Keep the receiver busy (and its read timeout quiet) through identical stretches
+                    flushCopy();
+                    out.flush();
+                }
+            } else {
+                flushCopy();
+                copyFirst = block;
+                copyCount = 1;
+            }
+            consumed(data, offset, length);
+        }
+
+        void literal(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flushCopy();
+            out.writeByte(OP_LITERAL);
+            out.writeInt(length);
+            out.write(data, offset, length);
+            progress.recordWireBytes(5 + length);
+            consumed(data, offset, length);
+        }
+
+        void end() throws IOException {
+            flushCopy();
+            out.writeByte(OP_END);
+            progress.recordWireBytes(1);
+            out.flush();
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyFirst >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyFirst);
+                out.writeInt(copyCount);
+                progress.recordWireBytes(9);
+                copyFirst = -1;
+            }
+        }
+
+        private void consumed(byte[] data, int offset, int length) {
+            if (checksum != null) {
+                checksum.update(data, offset, length);
+            }
+            progress.advance(length);
+        }
+    }
+}
@@ -1,32 +1,75 @@
 package com.filetransfer.service;
 
+import com.filetransfer.model.BatchTransferTask;
 import com.filetransfer.model.TransferTask;
+import com.filetransfer.model.TransferTask.TransferEngine;
+import com.filetransfer.util.FileHashIndex;
 import com.filetransfer.util.Logger;
 import com.filetransfer.util.SessionManager;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
 
 public class FileTransferService {
     
     private static final int PORT = 8080;
-    private static final int BUFFER_SIZE = 8192;
-    private static final long MAX_FILE_SIZE = 1024L * 1024L * 1024L; // 1GB in bytes
+    private static final long FREE_SPACE_RESERVE = 64L * 1024L * 1024L; // Keep the mailbox disk from filling up completely
+    private static final long STRIPE_MIN_FILE_SIZE = 64L * 1024L * 1024L; // Smaller files use one stream
+    private static final String MAILBOX_INDEX_FILE = ".hashes.dat";
+    private static final String SEND_HASH_CACHE_FILE = "hash.cache.dat";
+    private static final long MUX_MAX_FILE_SIZE = 4L * 1024L * 1024L; // Larger transfers get their own connection
     
     private Logger logger;
     private String mailboxPath;
     private SessionManager sessionManager;
     private TransferQueueManager queueManager;
     private TransferProgressListener progressListener;
+    private PeerConnectionPool connectionPool;
+    private TransportConfig transportConfig = TransportConfig.defaults();
+    private BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private TransferEngine defaultEngine = TransferEngine.ZERO_COPY;
+    private TransferEngine receiveEngine = TransferEngine.ZERO_COPY;
+    private long mappedThreshold = 256L * 1024L * 1024L; // MAPPED receive engine only above this size
+    private int stripeCount = 4;
+    private boolean compressionEnabled = false; // Pays off on slow links, costs CPU on fast ones
+    private boolean deltaEnabled = false; // Same trade-off: rolling checksums over the whole file
+    private boolean dedupEnabled = false; // Hashes the whole file before the request
+    private boolean checksumEnabled = true;
+    private final FileHashIndex sendHashCache;
+    private volatile FileHashIndex mailboxIndex;
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mailbox-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Integer> peerStripeCounts = new ConcurrentHashMap<>();
     
     public FileTransferService(Logger logger, String mailboxPath, SessionManager sessionManager) {
         this.logger = logger;
         this.mailboxPath = mailboxPath;
         this.sessionManager = sessionManager;
         this.queueManager = null; // Will be set later
+        this.sendHashCache = new FileHashIndex(logger, new File(System.getProperty("user.dir"), SEND_HASH_CACHE_FILE));
         ensureMailboxExists();
     }
     
@@ -38,6 +81,123 @@ public class FileTransferService {
         this.progressListener = listener;
     }
     
+    /**
+     * Send small transfers over pooled multiplexed connections (null opens one connection per transfer)
+     */
+    public void setConnectionPool(PeerConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+    
+    /**
+     * Socket options, buffer sizes and timeouts for every connection this service opens
+     */
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+    
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+    
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+    
+    /**
+     * Engine used for new outgoing transfers (each task can still override it)
+     */
+    public void setDefaultEngine(TransferEngine engine) {
+        this.defaultEngine = engine;
+    }
+    
+    public TransferEngine getDefaultEngine() {
+        return defaultEngine;
+    }
+    
+    /**
+     * Engine used to write incoming payloads into the mailbox
+     */
+    public void setReceiveEngine(TransferEngine engine) {
+        this.receiveEngine = engine;
+    }
+    
+    public TransferEngine getReceiveEngine() {
+        return receiveEngine;
+    }
+    
+    /**
+     * Smallest file written through the MAPPED receive engine; smaller files use ZERO_COPY
+     */
+    public void setMappedThreshold(long bytes) {
+        this.mappedThreshold = bytes;
+    }
+    
+    /**
+     * Number of parallel streams offered for large files (1 disables striping)
+     */
+    public void setStripeCount(int stripes) {
+        this.stripeCount = Math.max(1, stripes);
+    }
+    
+    /**
+     * Override the stripe count offered to one peer
+     */
+    public void setPeerStripeCount(String peerIP, int stripes) {
+        peerStripeCounts.put(peerIP, Math.max(1, stripes));
+    }
+    
+    /**
+     * Offer compressed payloads for new outgoing transfers
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+    
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+    
+    /**
+     * Offer delta transfers, used when the receiver already has a file of the same name
+     */
+    public void setDeltaEnabled(boolean enabled) {
+        this.deltaEnabled = enabled;
+    }
+    
+    public boolean isDeltaEnabled() {
+        return deltaEnabled;
+    }
+    
+    /**
+     * Send a content hash with each request so the receiver can skip files it already holds
+     */
+    public void setDedupEnabled(boolean enabled) {
+        this.dedupEnabled = enabled;
+    }
+    
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+    
+    /**
+     * Offer CRC32C trailers for new outgoing transfers. Without them the zero-copy engine
+     * sends with transferTo; with them every byte is read once into a buffer to be checksummed.
+     */
+    public void setChecksumEnabled(boolean enabled) {
+        this.checksumEnabled = enabled;
+    }
+    
+    public boolean isChecksumEnabled() {
+        return checksumEnabled;
+    }
+    
+    private int getStripeCount(String peerIP, long fileSize) {
+        if (fileSize < STRIPE_MIN_FILE_SIZE) {
+            return 1;
+        }
+        return peerStripeCounts.getOrDefault(peerIP, transportConfig.getStripes(peerIP, stripeCount));
+    }
+    
     public interface TransferProgressListener {
         void onProgress(int percentage);
         void onComplete();
@@ -63,6 +223,57 @@ public class FileTransferService {
         } catch (IOException e) {
             logger.log("ERROR: Could not create mailbox directory: " + e.getMessage());
         }
+        openMailboxIndex();
+    }
+    
+    /**
+     * Load the mailbox hash index and catch up with files added or changed while the app was closed
+     */
+    private void openMailboxIndex() {
+        File mailbox = new File(mailboxPath);
+        FileHashIndex index = new FileHashIndex(logger, new File(mailbox, MAILBOX_INDEX_FILE));
+        mailboxIndex = index;
+        indexer.submit(() -> index.refresh(mailbox, this::isMailboxFile));
+    }
+    
+    /**
+     * Received files, as opposed to the index, part files and their markers
+     */
+    private boolean isMailboxFile(File file) {
+        String name = file.getName();
+        return !name.startsWith(".") && !name.endsWith(".part") && !name.endsWith(".prealloc")
+            && !name.endsWith(".owner");
+    }
+    
+    /**
+     * Mailbox file with this content, or null
+     */
+    public File findInMailbox(String contentHash, long fileSize) {
+        return mailboxIndex.find(contentHash, fileSize);
+    }
+    
+    /**
+     * Make an incoming file available from a mailbox copy with the same content, without
+     * receiving it: the existing file itself if it has the same name, otherwise a hard link
+     * (or a local copy where links are not supported) under the usual unique name.
+     * fileName must be a plain name: anything that could leave the mailbox is refused.
+     */
+    public File linkExisting(File existing, String fileName, String contentHash) throws IOException {
+        if (!isPlainFileName(fileName)) {
+            throw new IOException("Refusing to link to " + fileName + ": not a plain file name");
+        }
+        if (existing.getName().equals(fileName)) {
+            return existing;
+        }
+        File targetFile = new File(mailboxPath, getUniqueFileName(fileName));
+        try {
+            Files.createLink(targetFile.toPath(), existing.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.log("Cannot hard-link " + existing.getName() + " (" + e.getMessage() + "), copying it");
+            Files.copy(existing.toPath(), targetFile.toPath());
+        }
+        mailboxIndex.record(targetFile, contentHash);
+        return targetFile;
     }
     
     public void sendFile(String targetIP, File file) {
@@ -76,20 +287,20 @@ public class FileTransferService {
             return; // STOP - do not attempt to send
         }
         
-        // Check file size (max 1GB)
-        long fileSize = file.length();
-        if (fileSize > MAX_FILE_SIZE) {
-            String error = "File too large: " + (fileSize / (1024 * 1024)) + " MB. Maximum allowed: 1024 MB (1GB)";
+        // No size limit: both engines stream in constant memory
+        if (!file.isFile() || !file.canRead()) {
+            String error = "Cannot read file: " + file.getAbsolutePath();
             logger.log("ERROR: " + error);
             if (progressListener != null) {
                 progressListener.onError(error);
             }
-            return; // STOP - file too large
+            return; // STOP - nothing to send
         }
         
         // If queue manager is available, add to queue instead of sending directly
         if (queueManager != null) {
             TransferTask task = new TransferTask(file, targetIP, TransferTask.TransferDirection.OUTGOING);
+            task.setEngine(defaultEngine);
             queueManager.addTask(task);
             logger.log("File added to outgoing queue: " + file.getName());
             
@@ -104,6 +315,48 @@ public class FileTransferService {
         sendFileDirectly(targetIP, file);
     }
     
+    /**
+     * Send several files as one batch: one request, one approval, one connection
+     */
+    public void sendFiles(String targetIP, List<File> files) {
+        if (files.size() == 1 || queueManager == null) {
+            for (File file : files) {
+                sendFile(targetIP, file);
+            }
+            return;
+        }
+        
+        if (!sessionManager.isCompatible(targetIP)) {
+            String error = "Cannot send files to " + targetIP + " - No handshake performed. Please perform handshake first.";
+            logger.log("ERROR: " + error);
+            if (progressListener != null) {
+                progressListener.onError(error);
+            }
+            return;
+        }
+        
+        List<TransferTask> items = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isFile() || !file.canRead()) {
+                String error = "Cannot read file: " + file.getAbsolutePath();
+                logger.log("ERROR: " + error);
+                if (progressListener != null) {
+                    progressListener.onError(error);
+                }
+                return;
+            }
+            items.add(new TransferTask(file, targetIP, TransferTask.TransferDirection.OUTGOING));
+        }
+        
+        BatchTransferTask batch = new BatchTransferTask(items, targetIP, TransferTask.TransferDirection.OUTGOING);
+        batch.setEngine(defaultEngine);
+        queueManager.addTask(batch);
+        logger.log("Batch of " + items.size() + " files added to outgoing queue: " + batch.getFileName());
+        
+        logger.log("Auto-approving outgoing batch: " + batch.getFileName());
+        queueManager.updateTaskStatus(batch.getId(), TransferTask.TransferStatus.APPROVED);
+    }
+    
     /**
      * Actually send a file (called by queue manager when slot available)
      */
@@ -113,7 +366,7 @@ public class FileTransferService {
         Socket socket = null;
         try {
             logger.log("Connecting to " + targetIP + ":" + PORT + "...");
-            socket = new Socket(targetIP, PORT);
+            socket = openSocket(targetIP, defaultEngine);
             logger.log("Connected. Sending file: " + file.getName() + " (" + (fileSize / 1024) + " KB)");
             
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
@@ -128,7 +381,7 @@ public class FileTransferService {
             
             // Wait for approval response from receiver
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            socket.setSoTimeout(30000); // 30 second timeout for approval
+            socket.setSoTimeout(transportConfig.getApprovalTimeout());
             String response = in.readLine();
             
             if (response == null || !response.equals("APPROVED")) {
@@ -143,31 +396,13 @@ public class FileTransferService {
             logger.log("Transfer approved by receiver, starting file transfer...");
             
             // Send file data
-            FileInputStream fis = new FileInputStream(file);
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalSent = 0;
-            int lastProgress = 0;
-            
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
-                
-                // Update progress bar
-                int progress = (int) ((totalSent * 100) / fileSize);
-                if (progress != lastProgress && progressListener != null) {
-                    progressListener.onProgress(progress);
-                    lastProgress = progress;
-                }
-                
-                // Log progress every 10%
-                if (progress % 10 == 0 && progress != 0 && bytesRead > 0) {
-                    logger.log("Transfer progress: " + progress + "%");
+            TransferProgress progress = new TransferProgress(logger, "Transfer", fileSize, percentage -> {
+                if (progressListener != null) {
+                    progressListener.onProgress(percentage);
                 }
-            }
-            
-            dos.flush();
-            fis.close();
+            });
+            progress.setLimits(bandwidthLimiter.forSending(targetIP));
+            sendPayload(socket, file, 0, fileSize, defaultEngine, false, false, progress);
             
             logger.log("File sent successfully: " + file.getName() + " (" + fileSize + " bytes)");
             if (progressListener != null) {
@@ -200,6 +435,10 @@ public class FileTransferService {
             logger.log("ERROR: Queue manager not set");
             return;
         }
+        if (task instanceof BatchTransferTask) {
+            sendBatchForTask((BatchTransferTask) task);
+            return;
+        }
         
         String targetIP = task.getRemoteIP();
         File file = task.getFile();
@@ -207,72 +446,138 @@ public class FileTransferService {
         String sequenceId = task.getId();
         
         Socket socket = null;
+        boolean slotTaken = false;
         try {
             logger.log("Connecting to " + targetIP + ":" + PORT + " for task " + sequenceId + "...");
-            socket = new Socket(targetIP, PORT);
+            socket = openTransferSocket(targetIP, task.getEngine(), fileSize);
             logger.log("Connected. Requesting file transfer: " + file.getName());
             
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            OutputStream dataOut = socket.getOutputStream();
+            // Binary control frames if the handshake found the peer supports them, text lines otherwise
+            ControlChannel control = ControlChannel.open(socket, sessionManager.usesBinaryControl(targetIP));
             
             // NEW PROTOCOL: Send metadata packet first
-            // Format: TRANSFER_REQUEST:sequenceId:fileName:fileSize
-            String requestPacket = String.format("TRANSFER_REQUEST:%s:%s:%d", 
-                sequenceId, file.getName(), fileSize);
-            out.println(requestPacket);
+            // Format: TRANSFER_REQUEST:sequenceId:fileName:fileSize[:STRIPES=n]:RESUME=1[:COMPRESS=deflate]
+            //         [:CHECKSUM=crc32c][:DELTA=1][:HASH=sha256]:START=1
+            TransferRequest request = new TransferRequest(sequenceId, file.getName(), fileSize);
+            int offeredStripes = getStripeCount(targetIP, fileSize);
+            if (offeredStripes > 1) {
+                request.setOption(TransferRequest.STRIPES, String.valueOf(offeredStripes));
+            }
+            request.setOption(TransferRequest.RESUME, "1");
+            if (compressionEnabled) {
+                request.setOption(TransferRequest.COMPRESS, BlockCompression.CODEC_DEFLATE);
+            }
+            if (checksumEnabled) {
+                request.setOption(TransferRequest.CHECKSUM, PayloadChecksum.CRC32C);
+            }
+            if (deltaEnabled) {
+                request.setOption(TransferRequest.DELTA, "1");
+            }
+            if (dedupEnabled) {
+                try {
+                    request.setOption(TransferRequest.HASH, sendHashCache.hash(file));
+                } catch (IOException e) {
+                    logger.log("WARNING: Could not hash " + file.getName() + ", sending without deduplication: " + e.getMessage());
+                }
+            }
+            request.setOption(TransferRequest.START, "1");
+            control.sendRequest(request);
             logger.log("Sent transfer request packet for " + file.getName());
             
             // Wait for receiver response: OK:sequenceId or KO:sequenceId
-            socket.setSoTimeout(60000); // 60 second timeout for approval
-            String response = in.readLine();
+            socket.setSoTimeout(transportConfig.getApprovalTimeout());
+            ControlChannel.Reply response = control.receiveReply();
             
-            if (response == null || !response.startsWith("OK:")) {
-                String error = response != null && response.startsWith("KO:") ? 
-                    "Transfer rejected by receiver" : "No response from receiver";
+            if (response == null || !response.isOk()) {
+                String error = response != null && response.isKo() ? 
+                    rejectionMessage(response) : "No response from receiver";
                 logger.log("ERROR: " + error + " (Response: " + response + ")");
                 queueManager.markTaskFailed(task.getId(), error);
                 return;
             }
             
             // Verify sequence ID in response
-            String[] parts = response.split(":");
-            if (parts.length < 2 || !parts[1].equals(sequenceId)) {
+            if (!response.getSequenceId().equals(sequenceId)) {
                 logger.log("ERROR: Sequence ID mismatch in response");
                 queueManager.markTaskFailed(task.getId(), "Sequence ID mismatch");
                 return;
             }
             
+            // The receiver may already hold a file with this content: nothing to send
+            Map<String, String> replyOptions = response.getOptions();
+            if (replyOptions.get(TransferRequest.HAVE) != null) {
+                logger.log("Receiver already has " + file.getName() + ", nothing sent (Task: " + task.getId() + ")");
+                task.setDeduplicated(true);
+                queueManager.markTaskCompleted(task.getId());
+                return;
+            }
+            
+            // The receiver answers with the stripe count it accepts (absent means one stream),
+            // the bytes it already holds from an earlier attempt of this sequence ID
+            // and the codec and checksum it accepts (absent means raw, unchecked bytes)
+            int stripes = Math.min(offeredStripes,
+                TransferRequest.intOption(replyOptions, TransferRequest.STRIPES, 1));
+            long offset = TransferRequest.longOption(replyOptions, TransferRequest.OFFSET, 0);
+            if (offset < 0 || offset > fileSize) {
+                logger.log("ERROR: Invalid resume offset " + offset + " from receiver");
+                queueManager.markTaskFailed(task.getId(), "Invalid resume offset");
+                return;
+            }
+            boolean compressed = BlockCompression.CODEC_DEFLATE.equals(replyOptions.get(TransferRequest.COMPRESS));
+            boolean checksummed = PayloadChecksum.CRC32C.equals(replyOptions.get(TransferRequest.CHECKSUM));
+            boolean delta = replyOptions.get(TransferRequest.DELTA) != null;
+            
+            // Only now, with bytes about to move, take one of the transfer slots;
+            // a receiver that echoed START waits for it before timing out payload reads
+            queueManager.acquireSendSlot(task);
+            slotTaken = true;
+            if (replyOptions.get(TransferRequest.START) != null) {
+                control.sendStart();
+            }
             logger.log("Transfer approved by receiver (OK:" + sequenceId + "), starting file transfer...");
             
             // Send file data
-            DataOutputStream dos = new DataOutputStream(dataOut);
-            FileInputStream fis = new FileInputStream(file);
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalSent = 0;
-            int lastProgress = 0;
-            
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
-                
-                // Update task progress
-                int progress = (int) ((totalSent * 100) / fileSize);
-                if (progress != lastProgress) {
-                    queueManager.updateTaskProgress(task.getId(), progress);
-                    lastProgress = progress;
+            TransferProgress progress = new TransferProgress(logger, "Transfer (Task: " + task.getId() + ")", fileSize,
+                percentage -> queueManager.updateTaskProgress(task.getId(), percentage));
+            progress.setLimits(bandwidthLimiter.forSending(targetIP));
+            if (delta) {
+                sendDelta(socket, file, checksummed, progress);
+            } else if (stripes > 1) {
+                try {
+                    sendStriped(socket, task, new StripePlan(fileSize, stripes), compressed, checksummed, progress);
+                } catch (IOException e) {
+                    // A corrupt stripe makes the receiver drop the others; its verdict says why
+                    ControlChannel.Reply verdict = checksummed ? readVerdictQuietly(socket, control) : null;
+                    if (verdict != null && verdict.isKo()) {
+                        throw new IOException(rejectionMessage(verdict));
+                    }
+                    throw e;
                 }
-                
-                // Log progress every 10%
-                if (progress % 10 == 0 && progress != 0 && bytesRead > 0) {
-                    logger.log("Transfer progress: " + progress + "% (Task: " + task.getId() + ")");
+            } else {
+                if (offset > 0) {
+                    logger.log("Resuming " + file.getName() + " at byte " + offset + " of " + fileSize);
+                    progress.advance(offset);
                 }
+                sendPayload(socket, file, offset, fileSize - offset, task.getEngine(), compressed, checksummed, progress);
             }
             
-            dos.flush();
-            fis.close();
+            // With checksums the receiver confirms the file once every trailer matched
+            if (checksummed) {
+                ControlChannel.Reply verdict = control.receiveReply();
+                if (verdict == null || !verdict.isOk()) {
+                    String error = verdict != null && verdict.isKo() ?
+                        rejectionMessage(verdict) : "No confirmation from receiver";
+                    logger.log("ERROR: " + error + " (Response: " + verdict + ")");
+                    queueManager.markTaskFailed(task.getId(), error);
+                    return;
+                }
+            }
             
+            if (compressed || delta) {
+                task.setCompressionRatio(compressionRatio(fileSize - offset, progress));
+                logger.log(String.format("%s ratio for %s: %.2fx", delta ? "Delta" : "Compression",
+                    file.getName(), task.getCompressionRatio()));
+            }
             logger.log("File sent successfully: " + file.getName() + " (" + fileSize + " bytes)");
             queueManager.markTaskCompleted(task.getId());
             
@@ -281,6 +586,9 @@ public class FileTransferService {
             logger.log("ERROR: " + error);
             queueManager.markTaskFailed(task.getId(), error);
         } finally {
+            if (slotTaken) {
+                queueManager.releaseSendSlot();
+            }
             if (socket != null) {
                 try {
                     socket.close();
@@ -292,10 +600,587 @@ public class FileTransferService {
         }
     }
     
-    public void receiveFileWithSize(Socket socket, String fileName, long fileSize) {
+    /**
+     * Send the files of a batch that are not completed yet (all of them, unless this is a retry)
+     * over one connection, after a single approval
+     */
+    private void sendBatchForTask(BatchTransferTask batch) {
+        String targetIP = batch.getRemoteIP();
+        String sequenceId = batch.getId();
+        List<TransferTask> pending = new ArrayList<>();
+        long totalSize = 0;
+        for (TransferTask item : batch.getItems()) {
+            if (item.getStatus() != TransferTask.TransferStatus.COMPLETED) {
+                pending.add(item);
+                totalSize += item.getFileSize();
+            }
+        }
+        
+        Socket socket = null;
+        boolean slotTaken = false;
         try {
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            logger.log("Connecting to " + targetIP + ":" + PORT + " for batch " + sequenceId + "...");
+            socket = openTransferSocket(targetIP, batch.getEngine(), totalSize);
+            logger.log("Connected. Requesting batch transfer of " + pending.size() + " files");
+            
+            ControlChannel control = ControlChannel.open(socket, sessionManager.usesBinaryControl(targetIP));
+            
+            TransferRequest request = TransferRequest.batch(sequenceId, batch.getFileName(), totalSize, pending.size());
+            if (checksumEnabled) {
+                request.setOption(TransferRequest.CHECKSUM, PayloadChecksum.CRC32C);
+            }
+            request.setOption(TransferRequest.START, "1");
+            control.sendRequest(request);
+            control.sendManifest(pending);
+            
+            socket.setSoTimeout(transportConfig.getApprovalTimeout());
+            ControlChannel.Reply response = control.receiveReply();
+            if (response == null || !response.isOk()) {
+                String error = response != null && response.isKo() ?
+                    rejectionMessage(response) : "No response from receiver";
+                logger.log("ERROR: " + error + " (Response: " + response + ")");
+                queueManager.markTaskFailed(batch.getId(), error);
+                return;
+            }
+            if (!response.getSequenceId().equals(sequenceId)) {
+                logger.log("ERROR: Sequence ID mismatch in response");
+                queueManager.markTaskFailed(batch.getId(), "Sequence ID mismatch");
+                return;
+            }
+            boolean checksummed = PayloadChecksum.CRC32C.equals(response.getOption(TransferRequest.CHECKSUM));
+            
+            queueManager.acquireSendSlot(batch);
+            slotTaken = true;
+            if (response.getOption(TransferRequest.START) != null) {
+                control.sendStart();
+            }
+            logger.log("Batch approved by receiver (OK:" + sequenceId + "), sending " + pending.size() + " files...");
+            TransferProgress progress = new TransferProgress(logger, "Batch (Task: " + batch.getId() + ")", totalSize,
+                percentage -> queueManager.updateTaskProgress(batch.getId(), percentage));
+            progress.setLimits(bandwidthLimiter.forSending(targetIP));
+            DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), transportConfig.getFramedBufferSize()));
+            SocketChannel channel = batch.getEngine() != TransferEngine.STREAM ? socket.getChannel() : null;
+            for (TransferTask item : pending) {
+                item.setStatus(TransferTask.TransferStatus.TRANSFERRING);
+                if (BatchTransfer.sendFile(dataOut, channel, item.getFile(), item.getFileSize(), checksummed, progress)) {
+                    item.setStatus(TransferTask.TransferStatus.COMPLETED);
+                    item.setProgress(100);
+                } else {
+                    logger.log("WARNING: " + item.getFileName() + " changed or disappeared since it was queued, skipped");
+                    item.setStatus(TransferTask.TransferStatus.FAILED);
+                    item.setErrorMessage("File changed or missing");
+                }
+            }
+            dataOut.flush();
+            
+            // The receiver lists the files it could not save
+            ControlChannel.Reply verdict = control.receiveReply();
+            if (verdict == null || !verdict.isOk()) {
+                throw new IOException(verdict != null ? rejectionMessage(verdict) : "No confirmation from receiver");
+            }
+            int failedCount = TransferRequest.intOption(verdict.getOptions(), TransferRequest.FAILED, 0);
+            for (int i = 0; i < failedCount; i++) {
+                int index = control.receiveIndex();
+                if (index >= 0 && index < pending.size()) {
+                    pending.get(index).setStatus(TransferTask.TransferStatus.FAILED);
+                    pending.get(index).setErrorMessage("Not saved by the receiver");
+                }
+            }
+            
+            int failed = batch.countItems(TransferTask.TransferStatus.FAILED);
+            if (failed > 0) {
+                logger.log("Batch sent, " + failed + " of " + batch.getItems().size() + " files failed");
+                queueManager.markTaskFailed(batch.getId(), failed + " of " + batch.getItems().size() + " files failed");
+            } else {
+                logger.log("Batch sent successfully: " + batch.getItems().size() + " files (" + batch.getFileSize() + " bytes)");
+                queueManager.markTaskCompleted(batch.getId());
+            }
             
+        } catch (IOException e) {
+            String error = "Batch transfer failed: " + e.getMessage();
+            logger.log("ERROR: " + error);
+            // Without the receiver's verdict nothing sent in this attempt is known to be saved
+            for (TransferTask item : pending) {
+                if (item.getStatus() != TransferTask.TransferStatus.FAILED) {
+                    item.setStatus(TransferTask.TransferStatus.PENDING_APPROVAL);
+                    item.setProgress(0);
+                }
+            }
+            queueManager.markTaskFailed(batch.getId(), error);
+        } finally {
+            if (slotTaken) {
+                queueManager.releaseSendSlot();
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                    logger.log("Connection closed");
+                } catch (IOException e) {
+                    logger.log("Error closing socket: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Progress of a receive outside the queue, paced by the inbound limits
+     */
+    private TransferProgress receiveProgress(Socket socket, long fileSize) {
+        TransferProgress progress = new TransferProgress(logger, "Receive", fileSize, null);
+        progress.setLimits(bandwidthLimiter.forReceiving(socket.getInetAddress().getHostAddress()));
+        return progress;
+    }
+    
+    /**
+     * File bytes per wire byte of a compressed transfer
+     */
+    public static double compressionRatio(long fileBytes, TransferProgress progress) {
+        long wireBytes = progress.getWireBytes();
+        return wireBytes > 0 ? (double) fileBytes / wireBytes : 1.0;
+    }
+    
+    /**
+     * Read the receiver's final reply after a failed send, or null if there is none
+     */
+    private ControlChannel.Reply readVerdictQuietly(Socket socket, ControlChannel control) {
+        try {
+            socket.setSoTimeout(transportConfig.getCommandTimeout());
+            return control.receiveReply();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private String rejectionMessage(ControlChannel.Reply response) {
+        String reason = response.getOption(TransferRequest.REASON);
+        if (TransferRequest.REASON_NO_SPACE.equals(reason)) {
+            return "Receiver does not have enough free disk space";
+        }
+        if (TransferRequest.REASON_CHECKSUM.equals(reason)) {
+            return "Checksum mismatch: the receiver discarded the corrupt file";
+        }
+        return "Transfer rejected by receiver";
+    }
+    
+    /**
+     * Check that the mailbox disk can take bytesNeeded more bytes (plus a small reserve)
+     */
+    public boolean hasFreeSpaceFor(long bytesNeeded) {
+        try {
+            long usable = Files.getFileStore(Paths.get(mailboxPath)).getUsableSpace();
+            if (usable - FREE_SPACE_RESERVE < bytesNeeded) {
+                logger.log("Not enough free space in mailbox: need " + bytesNeeded + " bytes, " + usable + " usable");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            // Unknown file store: let the transfer fail on write instead of refusing it
+            logger.log("WARNING: Could not check free space in mailbox: " + e.getMessage());
+            return true;
+        }
+    }
+    
+    /**
+     * Open a connection suited to the engine: the zero-copy engine needs a SocketChannel
+     * behind the socket so that transferTo can write to it directly. Socket options are set
+     * before connecting so the buffer sizes shape the TCP window.
+     */
+    private Socket openSocket(String targetIP, TransferEngine engine) throws IOException {
+        Socket socket = engine == TransferEngine.STREAM ? new Socket() : SocketChannel.open().socket();
+        try {
+            transportConfig.applyTo(socket, targetIP);
+            socket.connect(new InetSocketAddress(targetIP, PORT), transportConfig.getConnectTimeout(targetIP));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+    
+    /**
+     * Connection for one transfer: small ones share the peer's multiplexed connection if it has
+     * one, larger ones get their own socket so the engines can use its channel
+     */
+    private Socket openTransferSocket(String targetIP, TransferEngine engine, long size) throws IOException {
+        if (connectionPool != null && size < MUX_MAX_FILE_SIZE) {
+            Socket stream = connectionPool.openStream(targetIP);
+            if (stream != null) {
+                return stream;
+            }
+        }
+        return openSocket(targetIP, engine);
+    }
+    
+    /**
+     * Stream a byte range of the file with the selected engine, or as compressed blocks,
+     * followed by its checksum trailer when checksummed
+     */
+    private void sendPayload(Socket socket, File file, long offset, long length, TransferEngine engine,
+                             boolean compressed, boolean checksummed, TransferProgress progress) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        Checksum checksum = PayloadChecksum.create(checksummed);
+        if (compressed) {
+            // Compressed blocks go through user space, so no engine applies
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                DataOutputStream dataOut = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), transportConfig.getFramedBufferSize()));
+                BlockCompression.send(source, offset, length, dataOut, progress, checksum);
+            }
+        } else if (engine == TransferEngine.PIPELINED) {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                OutputStream dataOut = socket.getOutputStream();
+                PipelinedTransfer.send(source, offset, length, channel != null ? channel : Channels.newChannel(dataOut),
+                    progress, checksum);
+                dataOut.flush();
+            }
+        } else if (engine != TransferEngine.STREAM && channel != null) {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ChannelTransfer.sendZeroCopy(source, offset, length, channel, progress, checksum);
+            }
+        } else {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                fis.getChannel().position(offset);
+                OutputStream dataOut = socket.getOutputStream();
+                ChannelTransfer.sendStream(fis, dataOut, length, progress, checksum);
+                dataOut.flush();
+            }
+        }
+        if (checksum != null) {
+            PayloadChecksum.writeTrailer(socket.getOutputStream(), checksum);
+        }
+    }
+    
+    /**
+     * Read the receiver's block signatures of its old copy, then send the file as a delta against them
+     */
+    private void sendDelta(Socket socket, File file, boolean checksummed, TransferProgress progress) throws IOException {
+        DataInputStream signaturesIn = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream(), transportConfig.getFramedBufferSize()));
+        DeltaSync.Signatures signatures = DeltaSync.readSignatures(signaturesIn);
+        logger.log("Sending " + file.getName() + " as a delta against " + signatures.getBlockCount()
+            + " blocks of " + signatures.getBlockSize() + " bytes");
+        
+        Checksum checksum = PayloadChecksum.create(checksummed);
+        DataOutputStream dataOut = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream(), transportConfig.getFramedBufferSize()));
+        DeltaSync.sendDelta(file, signatures, dataOut, progress, checksum);
+        if (checksum != null) {
+            PayloadChecksum.writeTrailer(socket.getOutputStream(), checksum);
+        }
+    }
+    
+    /**
+     * Send every stripe of the plan in parallel: stripe 0 over the approved connection,
+     * the others over their own STRIPE connections. Returns once all stripes are sent.
+     */
+    private void sendStriped(Socket socket, TransferTask task, StripePlan plan, boolean compressed,
+                             boolean checksummed, TransferProgress progress) throws IOException {
+        logger.log("Sending " + task.getFileName() + " in " + plan.getCount() + " stripes (Task: " + task.getId() + ")");
+        
+        ExecutorService stripeExecutor = Executors.newFixedThreadPool(plan.getCount() - 1, Threads.factory("stripe-", true));
+        try {
+            List<Future<?>> stripes = new ArrayList<>();
+            for (int i = 1; i < plan.getCount(); i++) {
+                int index = i;
+                stripes.add(stripeExecutor.submit(() -> {
+                    sendStripe(task, plan, index, compressed, checksummed, progress);
+                    return null;
+                }));
+            }
+            
+            sendPayload(socket, task.getFile(), plan.getOffset(0), plan.getLength(0), task.getEngine(),
+                compressed, checksummed, progress);
+            
+            for (Future<?> stripe : stripes) {
+                stripe.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending stripes");
+        } finally {
+            stripeExecutor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Open an extra connection for one stripe: STRIPE:sequenceId:index, wait for OK, then send the range
+     */
+    private void sendStripe(TransferTask task, StripePlan plan, int index, boolean compressed,
+                            boolean checksummed, TransferProgress progress) throws IOException {
+        try (Socket socket = openSocket(task.getRemoteIP(), task.getEngine())) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            
+            out.println("STRIPE:" + task.getId() + ":" + index);
+            socket.setSoTimeout(transportConfig.getTransferTimeout());
+            String response = in.readLine();
+            if (response == null || !response.startsWith("OK:")) {
+                throw new IOException("Stripe " + index + " refused by receiver (Response: " + response + ")");
+            }
+            
+            sendPayload(socket, task.getFile(), plan.getOffset(index), plan.getLength(index), task.getEngine(),
+                compressed, checksummed, progress);
+        }
+    }
+    
+    /**
+     * Receive bytes [offset, fileSize) from the socket into targetFile with the receive engine.
+     * An offset of 0 starts a fresh file, a larger offset appends to what is already on disk.
+     * Used by both the queued (PortListener) and the legacy receive paths.
+     * @throws ChecksumMismatchException if checksummed and the sender's trailer does not match
+     */
+    public void receivePayload(Socket socket, File targetFile, long offset, long fileSize, boolean compressed,
+                               boolean checksummed, TransferProgress progress) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        Checksum checksum = PayloadChecksum.create(checksummed);
+        DataInputStream trailerIn = new DataInputStream(socket.getInputStream());
+        if (compressed) {
+            try (FileChannel target = openReceiveTarget(targetFile, offset)) {
+                // The trailer must come from the same buffered stream as the blocks
+                trailerIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), transportConfig.getFramedBufferSize()));
+                BlockCompression.receive(trailerIn, target, offset, fileSize - offset, progress, checksum);
+            }
+        } else if (receiveEngine == TransferEngine.MAPPED && fileSize >= mappedThreshold && channel != null) {
+            try (TimedChannel source = new TimedChannel(channel, socket.getSoTimeout())) {
+                receiveMapped(source, targetFile, offset, fileSize, progress, checksum);
+            }
+        } else if (receiveEngine == TransferEngine.PIPELINED) {
+            // Without a channel (multiplexed stream) the wrapper reads no further than asked,
+            // so the trailer is still in the stream afterwards
+            try (ReadableByteChannel source = channel != null ? new TimedChannel(channel, socket.getSoTimeout())
+                     : Channels.newChannel(socket.getInputStream());
+                 FileChannel target = openReceiveTarget(targetFile, offset)) {
+                PipelinedTransfer.receive(source, target, offset, fileSize - offset, progress, checksum);
+            }
+        } else if (receiveEngine != TransferEngine.STREAM && channel != null) {
+            try (TimedChannel source = new TimedChannel(channel, socket.getSoTimeout());
+                 FileChannel target = openReceiveTarget(targetFile, offset)) {
+                ChannelTransfer.receiveDirect(source, target, offset, fileSize - offset, progress, checksum);
+            }
+        } else {
+            try (FileOutputStream fos = new FileOutputStream(targetFile, offset > 0)) {
+                fos.getChannel().truncate(offset);
+                ChannelTransfer.receiveStream(socket.getInputStream(), fos, fileSize - offset, progress, checksum);
+                fos.flush();
+            }
+        }
+        if (checksum != null) {
+            PayloadChecksum.verifyTrailer(trailerIn, checksum, targetFile.getName());
+        }
+    }
+    
+    /**
+     * Send block signatures of the old copy (base) to the sender, then rebuild the new file into
+     * targetFile from the sender's delta
+     * @throws ChecksumMismatchException if checksummed and the rebuilt file does not match the sender's
+     */
+    public void receiveDelta(Socket socket, File targetFile, File base, long fileSize, boolean checksummed,
+                             TransferProgress progress) throws IOException {
+        int blockSize = DeltaSync.blockSize(base.length());
+        DeltaSync.writeSignatures(base, blockSize, new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream(), transportConfig.getFramedBufferSize())));
+        
+        Checksum checksum = PayloadChecksum.create(checksummed);
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), transportConfig.getFramedBufferSize()));
+        try (FileChannel source = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+             FileChannel target = openReceiveTarget(targetFile, 0)) {
+            DeltaSync.receiveDelta(dataIn, source, blockSize, target, fileSize, progress, checksum);
+        }
+        if (checksum != null) {
+            PayloadChecksum.verifyTrailer(dataIn, checksum, targetFile.getName());
+        }
+    }
+    
+    /**
+     * Receive the bodies of an approved batch into the mailbox, one part file at a time.
+     * A corrupt or skipped file is recorded as failed and the batch goes on with the next one.
+     * @return the manifest indexes of the files that were not saved
+     */
+    public List<Integer> receiveBatch(Socket socket, BatchTransferTask batch, boolean checksummed,
+                                      TransferProgress progress) throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), transportConfig.getFramedBufferSize()));
+        List<TransferTask> items = batch.getItems();
+        List<Integer> failed = new ArrayList<>();
+        
+        for (int i = 0; i < items.size(); i++) {
+            TransferTask item = items.get(i);
+            File partFile = getPartFile(item.getFileName(), batch.getExternalId() + "-" + i);
+            item.setStatus(TransferTask.TransferStatus.TRANSFERRING);
+            try {
+                if (BatchTransfer.receiveFile(dataIn, partFile, item.getFileSize(), checksummed, progress)) {
+                    completePartFile(partFile, item.getFileName());
+                    item.setStatus(TransferTask.TransferStatus.COMPLETED);
+                    item.setProgress(100);
+                } else {
+                    logger.log("Sender skipped " + item.getFileName() + " (changed or missing on its side)");
+                    item.setStatus(TransferTask.TransferStatus.FAILED);
+                    item.setErrorMessage("Not sent");
+                    failed.add(i);
+                }
+            } catch (ChecksumMismatchException e) {
+                logger.log("ERROR: " + e.getMessage() + ", discarding " + partFile.getName());
+                Files.deleteIfExists(partFile.toPath());
+                item.setStatus(TransferTask.TransferStatus.FAILED);
+                item.setErrorMessage("Checksum mismatch: corrupt file discarded");
+                failed.add(i);
+            } catch (IOException e) {
+                // Batches do not resume, so the partial file is of no use
+                Files.deleteIfExists(partFile.toPath());
+                item.setStatus(TransferTask.TransferStatus.FAILED);
+                item.setErrorMessage(e.getMessage());
+                throw e;
+            }
+        }
+        return failed;
+    }
+    
+    /**
+     * Mailbox file an incoming file of this name can be rebuilt from, or null if there is none
+     */
+    public File getDeltaBase(String fileName) {
+        if (!isPlainFileName(fileName)) {
+            return null;
+        }
+        File base = new File(mailboxPath, fileName);
+        try {
+            // A symlink in the mailbox must not expose a file elsewhere as the base
+            File mailbox = new File(mailboxPath).getCanonicalFile();
+            if (!mailbox.equals(base.getCanonicalFile().getParentFile())) {
+                logger.log("Delta base outside the mailbox ignored: " + fileName);
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return base.isFile() && base.length() >= DeltaSync.blockSize(base.length()) ? base : null;
+    }
+    
+    /**
+     * Open the target for writing at offset, dropping anything past it
+     */
+    private FileChannel openReceiveTarget(File targetFile, long offset) throws IOException {
+        FileChannel target = offset > 0
+            ? FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE)
+            : FileChannel.open(targetFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        target.truncate(offset);
+        return target;
+    }
+    
+    /**
+     * Preallocate the target to its final size and fill it through mapped windows.
+     * Preallocation sets the length once instead of growing the file on every write.
+     */
+    private void receiveMapped(ReadableByteChannel source, File targetFile, long offset, long fileSize,
+                               TransferProgress progress, Checksum checksum) throws IOException {
+        markPreallocated(targetFile);
+        try (RandomAccessFile target = new RandomAccessFile(targetFile, "rw")) {
+            target.setLength(fileSize);
+            try {
+                ChannelTransfer.receiveMapped(source, target.getChannel(), offset, fileSize - offset, progress, checksum);
+            } catch (IOException e) {
+                // receiveMapped trims the file to the bytes received; if that worked the length is a valid resume offset
+                if (target.length() < fileSize) {
+                    clearPreallocated(targetFile);
+                }
+                throw e;
+            }
+        }
+        clearPreallocated(targetFile);
+    }
+    
+    private File preallocationMarker(File targetFile) {
+        return new File(targetFile.getPath() + ".prealloc");
+    }
+    
+    /**
+     * Flag a file whose length is its preallocated size rather than the bytes written.
+     * If the app dies before clearPreallocated, the file is not used to resume.
+     */
+    public void markPreallocated(File targetFile) throws IOException {
+        Files.write(preallocationMarker(targetFile).toPath(), new byte[0]);
+    }
+    
+    public void clearPreallocated(File targetFile) throws IOException {
+        Files.deleteIfExists(preallocationMarker(targetFile).toPath());
+    }
+    
+    /**
+     * Partial file that collects an incoming transfer until it is complete.
+     * Keyed by the sender's sequence ID so a retried transfer finds it again.
+     */
+    public File getPartFile(String fileName, String sequenceId) {
+        return new File(mailboxPath, fileName + "." + sequenceId.replaceAll("[^A-Za-z0-9-]", "_") + ".part");
+    }
+    
+    /**
+     * Bytes of an earlier attempt that can be resumed (0 if none or unusable).
+     * Only the peer whose transfer was approved can resume it, and only for the same size.
+     */
+    public long getResumableOffset(String fileName, String sequenceId, String senderIP, long fileSize) {
+        File part = getPartFile(fileName, sequenceId);
+        if (!part.isFile() || preallocationMarker(part).exists() || !isPartOwner(part, senderIP, fileSize)) {
+            return 0;
+        }
+        long length = part.length();
+        return length <= fileSize ? length : 0;
+    }
+    
+    /**
+     * Record which peer and size the user approved a part file for
+     */
+    public void recordPartOwner(File partFile, String senderIP, long fileSize) throws IOException {
+        Files.writeString(ownerRecord(partFile).toPath(), senderIP + "\n" + fileSize + "\n");
+    }
+    
+    private boolean isPartOwner(File partFile, String senderIP, long fileSize) {
+        try {
+            String[] owner = Files.readString(ownerRecord(partFile).toPath()).split("\n");
+            return owner.length >= 2 && owner[0].equals(senderIP) && owner[1].equals(String.valueOf(fileSize));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Delete a part file that can no longer be resumed, with its owner record
+     */
+    public void discardPartFile(File partFile) throws IOException {
+        Files.deleteIfExists(partFile.toPath());
+        Files.deleteIfExists(ownerRecord(partFile).toPath());
+    }
+    
+    private File ownerRecord(File partFile) {
+        return new File(partFile.getPath() + ".owner");
+    }
+    
+    /**
+     * Move a completed part file to its final name in the mailbox
+     * @return the final file
+     */
+    public File completePartFile(File partFile, String fileName) throws IOException {
+        File targetFile = new File(mailboxPath, getUniqueFileName(fileName));
+        Files.move(partFile.toPath(), targetFile.toPath());
+        Files.deleteIfExists(ownerRecord(partFile).toPath());
+        
+        // Hash it in the background so later transfers of the same content are deduplicated
+        FileHashIndex index = mailboxIndex;
+        indexer.submit(() -> {
+            try {
+                index.hash(targetFile);
+            } catch (IOException e) {
+                logger.log("WARNING: Could not hash " + targetFile.getName() + ": " + e.getMessage());
+            }
+        });
+        return targetFile;
+    }
+    
+    public void receiveFileWithSize(Socket socket, String fileName, long fileSize) {
+        try {
             // File size already read by PortListener, just receive data
             logger.log("Receiving file data: " + fileName + " (" + fileSize + " bytes)");
             
@@ -304,24 +1189,7 @@ public class FileTransferService {
             File targetFile = new File(mailboxPath, targetFileName);
             
             // Receive file data
-            FileOutputStream fos = new FileOutputStream(targetFile);
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalReceived = 0;
-            
-            while (totalReceived < fileSize && (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalReceived))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalReceived += bytesRead;
-                
-                // Log progress every 10%
-                int progress = (int) ((totalReceived * 100) / fileSize);
-                if (progress % 10 == 0 && bytesRead > 0) {
-                    logger.log("Receive progress: " + progress + "%");
-                }
-            }
-            
-            fos.flush();
-            fos.close();
+            receivePayload(socket, targetFile, 0, fileSize, false, false, receiveProgress(socket, fileSize));
             
             logger.log("File received successfully: " + targetFileName + " saved to " + mailboxPath);
             
@@ -342,25 +1210,7 @@ public class FileTransferService {
             String targetFileName = getUniqueFileName(fileName);
             File targetFile = new File(mailboxPath, targetFileName);
             
-            FileOutputStream fos = new FileOutputStream(targetFile);
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalReceived = 0;
-            
-            while (totalReceived < fileSize && (bytesRead = dis.read(buffer, 0, 
-                    (int) Math.min(buffer.length, fileSize - totalReceived))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalReceived += bytesRead;
-                
-                // Log progress every 10%
-                int progress = (int) ((totalReceived * 100) / fileSize);
-                if (progress % 10 == 0) {
-                    logger.log("Receive progress: " + progress + "%");
-                }
-            }
-            
-            fos.flush();
-            fos.close();
+            receivePayload(socket, targetFile, 0, fileSize, false, false, receiveProgress(socket, fileSize));
             
             logger.log("File received successfully: " + targetFileName + " saved to mailbox");
             
@@ -375,6 +1225,15 @@ public class FileTransferService {
         }
     }
     
+    /**
+     * A name that stays in the directory it is resolved against: no separators, not "." or ".."
+     */
+    static boolean isPlainFileName(String fileName) {
+        return !fileName.isEmpty() && !fileName.equals(".") && !fileName.equals("..")
+            && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0
+            && fileName.indexOf(File.separatorChar) < 0 && fileName.indexOf('\0') < 0;
+    }
+    
     private String getUniqueFileName(String fileName) {
         File file = new File(mailboxPath, fileName);
         if (!file.exists()) {
@@ -2,44 +2,64 @@ package com.filetransfer.service;
 
 import com.filetransfer.util.Logger;
 import com.filetransfer.util.SessionManager;
+import com.filetransfer.util.TransportConfig;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 public class HandshakeService {
     
     private static final int PORT = 8080;
-    private static final String HANDSHAKE = "miyabi69";
+    private static final String HANDSHAKE = ControlChannel.HANDSHAKE;
     
     private Logger logger;
     private SessionManager sessionManager;
+    private PeerConnectionPool connectionPool;
+    private TransportConfig transportConfig = TransportConfig.defaults();
     
     public HandshakeService(Logger logger, SessionManager sessionManager) {
         this.logger = logger;
         this.sessionManager = sessionManager;
     }
     
+    /**
+     * Handshake over the peer's multiplexed connection, which later transfers then reuse
+     */
+    public void setConnectionPool(PeerConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+    
+    /**
+     * Socket options and timeouts for handshake connections
+     */
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+    
     public boolean sendHandshake(String targetIP) {
-        Socket socket = null;
         try {
             logger.log("Attempting handshake with " + targetIP + "...");
-            socket = new Socket(targetIP, PORT);
-            
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            // Send handshake
-            out.println(HANDSHAKE);
-            logger.log("Sent: " + HANDSHAKE);
+            if (connectionPool != null) {
+                // A handshake is the user's way to retry a peer, which may have been updated since
+                connectionPool.forgetPlainPeer(targetIP);
+            }
             
-            // Wait for response
-            String response = in.readLine();
+            // Binary control frames first; peers that predate them hang up, then get the text line
+            boolean binary = true;
+            String response = exchangeHandshake(targetIP, true);
+            if (response == null) {
+                logger.log(targetIP + " does not support binary control messages, using text");
+                binary = false;
+                response = exchangeHandshake(targetIP, false);
+            }
             logger.log("Received: " + response);
             
             if (HANDSHAKE.equals(response)) {
                 logger.log("Handshake successful with " + targetIP);
                 // Add to session manager
                 sessionManager.addCompatibleDevice(targetIP);
+                sessionManager.setBinaryControl(targetIP, binary);
                 return true;
             } else {
                 logger.log("Invalid handshake response from " + targetIP);
@@ -49,15 +69,50 @@ public class HandshakeService {
         } catch (IOException e) {
             logger.log("Handshake failed with " + targetIP + ": " + e.getMessage());
             return false;
+        }
+    }
+    
+    /**
+     * Send the handshake over a new connection (a stream of the peer's multiplexed one if possible)
+     * @return the peer's answer, or null if a binary handshake was not understood
+     */
+    private String exchangeHandshake(String targetIP, boolean binary) throws IOException {
+        Socket socket = connectionPool != null ? connectionPool.openStream(targetIP) : null;
+        if (socket == null) {
+            socket = new Socket();
+            try {
+                transportConfig.applyTo(socket, targetIP);
+                socket.connect(new InetSocketAddress(targetIP, PORT), transportConfig.getConnectTimeout(targetIP));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        try {
+            ControlChannel control = ControlChannel.open(socket, binary);
+            if (binary) {
+                // Older peers hang up at once, so an answer that does not come is an error
+                socket.setSoTimeout(transportConfig.getCommandTimeout());
+            }
+            
+            // Send handshake
+            control.sendHandshake();
+            logger.log("Sent: " + HANDSHAKE + (binary ? " (binary)" : ""));
+            
+            // Wait for response
+            return control.receiveHandshake();
+            
+        } catch (IOException e) {
+            if (binary) {
+                return null;
+            }
+            throw e;
         } finally {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    logger.log("Error closing socket: " + e.getMessage());
-                }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log("Error closing socket: " + e.getMessage());
             }
         }
     }
 }
- 
@@ -0,0 +1,266 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of the port listener. It reads the first message of each connection
+ * without blocking, then hands the connection, switched back to blocking mode, to the
+ * handler on this thread. A connection waiting for its first message costs a selection key
+ * and nothing else: bytes are read into a buffer shared by the loop and only kept per
+ * connection while a message is incomplete.
+ */
+final class ListenerLoop implements Runnable {
+
+    /**
+     * Called on the loop thread with a complete first message (data[0..messageLength)),
+     * followed by any bytes that arrived after it up to length
+     */
+    interface Handler {
+        void onFirstMessage(SocketChannel channel, byte[] data, int messageLength, int length);
+
+        /**
+         * The connection was closed without a usable first message
+         */
+        void onDropped(String clientIP, String reason);
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    /** Bytes of an incomplete first message and when the connection gives up waiting for the rest */
+    private static final class Pending {
+        final long deadline;
+        byte[] data;
+        int length;
+
+        Pending(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final String name;
+    private final Logger logger;
+    private final Handler handler;
+    private final long timeoutMillis;
+    private final Selector selector;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ServerSocketChannel serverChannel;
+    private ListenerLoop[] acceptTargets;
+    private int nextTarget;
+    private volatile boolean running = true;
+
+    ListenerLoop(String name, Logger logger, long timeoutMillis, Handler handler) throws IOException {
+        this.name = name;
+        this.logger = logger;
+        this.timeoutMillis = timeoutMillis;
+        this.handler = handler;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Accept connections on this loop and share them out round-robin across targets
+     * (call before start)
+     */
+    void listen(ServerSocketChannel serverChannel, ListenerLoop[] targets) {
+        this.serverChannel = serverChannel;
+        this.acceptTargets = targets;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watch an accepted connection for its first message; safe from any thread
+     */
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            }
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MS;
+            List<SelectionKey> completed = new ArrayList<>();
+
+            while (running) {
+                selector.select(SWEEP_INTERVAL_MS);
+                addRegistrations();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable() && read(key)) {
+                        completed.add(key);
+                    }
+                }
+                if (!completed.isEmpty()) {
+                    handOff(completed);
+                    completed.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    dropExpired(now);
+                    nextSweep = now + SWEEP_INTERVAL_MS;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                logger.log("ERROR: Listener loop " + name + " stopped: " + e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                acceptTargets[nextTarget++ % acceptTargets.length].register(channel);
+            }
+        } catch (IOException e) {
+            if (running) {
+                logger.log("Error accepting connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void addRegistrations() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Pending(System.currentTimeMillis() + timeoutMillis));
+            } catch (IOException e) {
+                drop(channel, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read what has arrived on a connection
+     * @return true once its first message is complete
+     */
+    private boolean read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Pending pending = (Pending) key.attachment();
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                key.cancel();
+                drop(channel, pending.length == 0 ? "empty message" : "connection closed mid-message");
+                return false;
+            }
+            if (pending.data == null) {
+                pending.data = Arrays.copyOf(readBuffer.array(), Math.max(read, 64));
+            } else {
+                if (pending.length + read > pending.data.length) {
+                    pending.data = Arrays.copyOf(pending.data, Math.max(pending.data.length * 2, pending.length + read));
+                }
+                System.arraycopy(readBuffer.array(), 0, pending.data, pending.length, read);
+            }
+            pending.length += read;
+            return ControlChannel.firstMessageLength(pending.data, pending.length) > 0;
+        } catch (IOException e) {
+            key.cancel();
+            drop(channel, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deregister connections with a complete first message and pass them on in blocking mode.
+     * A channel can only switch mode once its cancelled key has left the selector.
+     */
+    private void handOff(List<SelectionKey> completed) throws IOException {
+        for (SelectionKey key : completed) {
+            key.cancel();
+        }
+        selector.selectNow();
+        for (SelectionKey key : completed) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Pending pending = (Pending) key.attachment();
+            try {
+                channel.configureBlocking(true);
+                int messageLength = ControlChannel.firstMessageLength(pending.data, pending.length);
+                handler.onFirstMessage(channel, pending.data, messageLength, pending.length);
+            } catch (IOException | RuntimeException e) {
+                drop(channel, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close connections that did not send a complete first message in time
+     */
+    private void dropExpired(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Pending && ((Pending) key.attachment()).deadline <= now) {
+                key.cancel();
+                drop((SocketChannel) key.channel(), "no command within timeout");
+            }
+        }
+    }
+
+    private void drop(SocketChannel channel, String reason) {
+        String clientIP = channel.socket().getInetAddress() != null
+            ? channel.socket().getInetAddress().getHostAddress() : "unknown";
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        handler.onDropped(clientIP, reason);
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {}
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {}
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
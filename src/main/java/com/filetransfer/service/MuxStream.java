@@ -0,0 +1,361 @@
+package com.filetransfer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One logical stream of a PeerConnection, presented as a Socket so the handshake and transfer
+ * code runs on it unchanged. It has no SocketChannel, so the engines take their stream paths.
+ *
+ * Flow control is per stream: the sender may have at most STREAM_WINDOW unread bytes in
+ * flight, and the reader grants more as the application consumes them. A slow stream
+ * therefore never stalls the others on the same connection.
+ *
+ * State is guarded by a lock rather than the monitor so a virtual thread blocked in a read
+ * or waiting for window does not hold its carrier.
+ */
+public class MuxStream extends Socket {
+
+    private final PeerConnection connection;
+    private final int id;
+    private final ArrayDeque<byte[]> inbound = new ArrayDeque<>();
+    private final InputStream input = new StreamInput();
+    private final OutputStream output = new StreamOutput();
+    private int headOffset;  // Bytes of the first inbound frame already read
+    private int buffered;    // Bytes received and not read yet
+    private int consumed;    // Bytes read since the last window update
+    private int sendWindow = PeerConnection.STREAM_WINDOW;
+    private int timeoutMs;
+    private boolean remoteClosed;
+    private boolean localClosed;
+    private IOException failure;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition(); // Data, window, close or failure
+
+    MuxStream(PeerConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    // Called by the connection's reader thread
+
+    void receive(byte[] data) throws IOException {
+        lock.lock();
+        try {
+            if (buffered + data.length > PeerConnection.STREAM_WINDOW) {
+                throw new IOException("Stream " + id + " overran its window");
+            }
+            if (!localClosed) {
+                inbound.add(data);
+                buffered += data.length;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void grant(int bytes) {
+        lock.lock();
+        try {
+            sendWindow += bytes;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remoteClose() {
+        lock.lock();
+        try {
+            remoteClosed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Socket API used by the transfer code
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        checkOpen();
+        return output;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        lock.lock();
+        try {
+            this.timeoutMs = timeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getSoTimeout() {
+        lock.lock();
+        try {
+            return timeoutMs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return connection.getSocket().getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return connection.getSocket().getPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return connection.getSocket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return localClosed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (localClosed) {
+                return;
+            }
+            localClosed = true;
+            inbound.clear();
+            buffered = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.closeStream(this);
+    }
+
+    @Override
+    public String toString() {
+        return "MuxStream[" + id + " to " + getInetAddress() + "]";
+    }
+
+    private void checkOpen() throws SocketException {
+        lock.lock();
+        try {
+            if (localClosed) {
+                throw new SocketException("Socket is closed");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the stream state to change, until the read deadline (0 means none); lock held
+     */
+    private void await(long deadline) throws IOException {
+        try {
+            if (deadline == 0) {
+                changed.await();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                changed.await(remaining, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Copy received bytes into b
+     * @return bytes copied, or -1 once the peer closed the stream and everything was read
+     */
+    private int take(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+            while (inbound.isEmpty()) {
+                checkOpen();
+                if (remoteClosed) {
+                    return -1;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                await(deadline);
+            }
+
+            byte[] head = inbound.peek();
+            int n = Math.min(len, head.length - headOffset);
+            System.arraycopy(head, headOffset, b, off, n);
+            headOffset += n;
+            if (headOffset == head.length) {
+                inbound.poll();
+                headOffset = 0;
+            }
+            buffered -= n;
+            consumed += n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes to grant back to the sender, once enough were consumed to make an update worth a frame
+     */
+    private int takeWindowUpdate() {
+        lock.lock();
+        try {
+            if (consumed < PeerConnection.STREAM_WINDOW / 2 || remoteClosed || localClosed) {
+                return 0;
+            }
+            int update = consumed;
+            consumed = 0;
+            return update;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserve up to max bytes of send window, waiting for the reader to grant more if there is none
+     */
+    private int reserve(int max) throws IOException {
+        lock.lock();
+        try {
+            while (sendWindow == 0) {
+                checkOpen();
+                if (failure != null) {
+                    throw failure;
+                }
+                if (remoteClosed) {
+                    throw new SocketException("Stream closed by peer");
+                }
+                await(0);
+            }
+            checkOpen();
+            if (failure != null) {
+                throw failure;
+            }
+            if (remoteClosed) {
+                throw new SocketException("Stream closed by peer");
+            }
+            int n = Math.min(max, sendWindow);
+            sendWindow -= n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class StreamInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = take(b, off, len);
+            int update = takeWindowUpdate();
+            if (update > 0) {
+                connection.sendWindowUpdate(id, update);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return buffered;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            MuxStream.this.close();
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = reserve(Math.min(len, PeerConnection.MAX_DATA_FRAME));
+                connection.sendData(id, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            MuxStream.this.close();
+        }
+    }
+}
@@ -2,146 +2,410 @@ package com.filetransfer.service;
 
 import com.filetransfer.model.Device;
 import com.filetransfer.util.Logger;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
+import java.net.UnknownHostException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * Finds devices with port 8080 open on the subnets of every active interface, with a
+ * built-in TCP connect sweep (see PortSweep). Each interface's range comes from its real
+ * prefix length (networks larger than a /16 are narrowed to the /16 around us); overlapping
+ * ranges are merged and cut into shards of up to 256 addresses, which are swept a few at a
+ * time under one probe rate limit (app.scan.probeRate). Host names are looked up while the
+ * sweep goes on.
+ *
+ * startScan reports devices as they answer and can be cancelled; scanNetwork waits for the
+ * whole result.
+ *
+ * Found devices are cached. A shard swept within the sweep TTL is not swept again: its
+ * devices seen within the peer TTL are reported without a probe, and only the older ones are
+ * probed again (and forgotten if they no longer answer). The local interfaces are read once
+ * and kept until networkChanged() or LOCAL_TTL_MS.
+ */
 public class NetworkScanner {
     
     private static final int TARGET_PORT = 8080;
-    private static final String OS = System.getProperty("os.name").toLowerCase();
+    private static final int MAX_IN_FLIGHT = 512;          // Pending connects across all shards
+    private static final int SHARD_SIZE = 256;             // Addresses per shard, aligned like a /24
+    private static final int SHARD_WORKERS = 4;            // Shards swept at once
+    private static final int MIN_PREFIX = 16;              // Larger networks are narrowed to this
+    private static final long CONNECT_TIMEOUT_MS = 500;    // A LAN host answers well within this
+    private static final int LOOKUP_THREADS = 8;
+    private static final long LOOKUP_WAIT_MS = 2000;       // Names not found by then stay "Unknown"
+    private static final long LOCAL_TTL_MS = 60000;        // Re-read interfaces at least this often
     private Logger logger;
-    private String nmapPath;
+    private TransportConfig transportConfig = TransportConfig.defaults();
+    private final Map<String, CachedDevice> cache = new ConcurrentHashMap<>(); // By IP
+    private final Map<String, Long> sweptAt = new ConcurrentHashMap<>();       // Shard -> start of its last full sweep
+    private volatile LocalNetworks local;
 
     public NetworkScanner(Logger logger) {
         this.logger = logger;
-        this.nmapPath = findNmapPath();
     }
     
     /**
-     * Find nmap executable path (handles Windows and Unix)
+     * Cache TTLs and probe rate (app.scan.peerTtl, app.scan.sweepTtl, app.scan.probeRate)
      */
-    private String findNmapPath() {
-        if (OS.contains("win")) {
-            // Common Windows installation paths
-            String[] possiblePaths = {
-                "C:\\Program Files (x86)\\Nmap\\nmap.exe",
-                "C:\\Program Files\\Nmap\\nmap.exe",
-                "nmap.exe", // If in PATH
-                "nmap"      // Fallback
-            };
-            
-            for (String path : possiblePaths) {
-                try {
-                    ProcessBuilder pb = new ProcessBuilder(path, "--version");
-                    Process process = pb.start();
-                    if (process.waitFor() == 0) {
-                        logger.log("Found nmap at: " + path);
-                        return path;
-                    }
-                } catch (Exception e) {
-                    // Try next path
-                }
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+    
+    /**
+     * The interfaces or their addresses changed: read them again and sweep every subnet in full
+     */
+    public void networkChanged() {
+        local = null;
+        sweptAt.clear();
+    }
+
+    /**
+     * Receives the devices of a scan as they are found, on the scan's threads
+     */
+    public interface ScanListener {
+        void onDeviceFound(Device device);
+        
+        /**
+         * A device reported earlier changed: its host name was found
+         */
+        default void onDeviceUpdated(Device device) {
+        }
+        
+        /**
+         * Progress: a shard was swept, the done-th of total
+         */
+        default void onShardDone(String shard, int done, int total) {
+        }
+        
+        /**
+         * Called once, after the last device: every shard was swept, or the scan was cancelled
+         */
+        void onScanComplete(List<Device> devices, boolean cancelled);
+    }
+    
+    /**
+     * A scan running in the background (see startScan)
+     */
+    public static final class Scan {
+        private final List<PortSweep> sweeps = new CopyOnWriteArrayList<>();
+        private volatile boolean cancelled;
+        
+        /**
+         * Stop sweeping; the listener still gets onScanComplete, with the devices found so far
+         */
+        public void cancel() {
+            cancelled = true;
+            for (PortSweep sweep : sweeps) {
+                sweep.cancel();
+            }
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        private void add(PortSweep sweep) {
+            sweeps.add(sweep);
+            if (cancelled) {
+                sweep.cancel();
             }
-            
-            logger.log("WARNING: nmap not found in standard Windows locations");
-            return "nmap"; // Fallback, will fail if not in PATH
-        } else {
-            // Unix/Linux/Mac - assume in PATH
-            return "nmap";
         }
     }
-
+    
+    /**
+     * Scan in the background, reporting each device to the listener as soon as it answers
+     */
+    public Scan startScan(ScanListener listener) {
+        Scan scan = new Scan();
+        Threads.start("network-scan", true, () -> runScan(scan, listener));
+        return scan;
+    }
+    
+    /**
+     * Scan and wait for the result
+     */
     public List<Device> scanNetwork() {
-        Map<String, Device> deviceMap = new HashMap<>(); // Use map to avoid duplicates
+        return runScan(new Scan(), new ScanListener() {
+            @Override
+            public void onDeviceFound(Device device) {
+            }
+            
+            @Override
+            public void onScanComplete(List<Device> devices, boolean cancelled) {
+            }
+        });
+    }
+
+    private List<Device> runScan(Scan scan, ScanListener listener) {
+        Map<String, Device> deviceMap = new ConcurrentHashMap<>(); // Use map to avoid duplicates
+        AtomicBoolean finished = new AtomicBoolean(); // No updates after onScanComplete
         
         try {
             logger.log("Starting network scan...");
+            long start = System.currentTimeMillis();
             
             // Get ALL local IPs and their subnets
-            List<NetworkInfo> networks = getAllNetworkInfo();
-            if (networks.isEmpty()) {
+            LocalNetworks localNetworks = localNetworks();
+            List<Shard> shards = planShards(localNetworks.networks);
+            if (shards.isEmpty()) {
                 logger.log("ERROR: No active network interfaces found");
+                finished.set(true);
+                listener.onScanComplete(new ArrayList<>(), scan.isCancelled());
                 return new ArrayList<>();
             }
             
-            logger.log("Found " + networks.size() + " active network interface(s)");
+            logger.log("Found " + localNetworks.networks.size() + " active network interface(s)");
+            Set<String> localIPs = localNetworks.ips;
             
-            // Scan each network
-            for (NetworkInfo netInfo : networks) {
-                logger.log("Scanning network: " + netInfo.subnet + " (interface: " + netInfo.interfaceName + ", local IP: " + netInfo.localIP + ")");
-                scanSubnet(netInfo.subnet, netInfo.localIP, deviceMap);
+            // Sweep a few shards at a time, sharing the connect window and the probe rate
+            int workers = Math.min(SHARD_WORKERS, shards.size());
+            int window = MAX_IN_FLIGHT / workers;
+            TokenBucket probeRate = new TokenBucket(transportConfig.getScanProbeRate());
+            logger.log("Sweeping " + shards.size() + " shard(s), " + workers + " at a time"
+                + (probeRate.isUnlimited() ? "" : ", at most " + probeRate.getRate() + " probes/s"));
+            ExecutorService lookups = Executors.newFixedThreadPool(LOOKUP_THREADS, Threads.factory("scan-lookup-", true));
+            ExecutorService shardPool = Executors.newFixedThreadPool(workers, Threads.factory("scan-shard-", true));
+            Consumer<Device> onFound = device -> {
+                listener.onDeviceFound(device);
+                if (!"Unknown".equals(device.getHostname())) {
+                    return; // Cached, named by an earlier scan
+                }
+                lookups.execute(() -> {
+                    String name = lookUpName(device.getIpAddress());
+                    if (name != null && !finished.get()) {
+                        device.setHostname(name);
+                        listener.onDeviceUpdated(device);
+                    }
+                });
+            };
+            AtomicInteger shardsDone = new AtomicInteger();
+            for (Shard shard : shards) {
+                shardPool.execute(() -> {
+                    if (scan.isCancelled()) {
+                        return;
+                    }
+                    scanShard(shard, scan, window, probeRate, localIPs, deviceMap, onFound);
+                    if (!scan.isCancelled()) {
+                        listener.onShardDone(shard.name, shardsDone.incrementAndGet(), shards.size());
+                    }
+                });
+            }
+            shardPool.shutdown();
+            shardPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            
+            // Give the name lookups of the last hosts found a moment to finish
+            lookups.shutdown();
+            if (scan.isCancelled() || !lookups.awaitTermination(LOOKUP_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                lookups.shutdownNow();
             }
             
-            logger.log("Network scan complete. Found " + deviceMap.size() + " unique device(s) across all networks.");
+            logger.log("Network scan " + (scan.isCancelled() ? "cancelled" : "complete") + ". Found " + deviceMap.size()
+                + " unique device(s) across all networks in " + (System.currentTimeMillis() - start) + " ms.");
             
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log("Network scan interrupted");
         } catch (Exception e) {
             logger.log("ERROR during network scan: " + e.getMessage());
             e.printStackTrace();
         }
         
-        return new ArrayList<>(deviceMap.values());
+        List<Device> devices = new ArrayList<>(deviceMap.values());
+        if (finished.compareAndSet(false, true)) {
+            listener.onScanComplete(devices, scan.isCancelled());
+        }
+        return devices;
     }
 
-    private void scanSubnet(String subnet, String localIP, Map<String, Device> deviceMap) {
+    private void scanShard(Shard shard, Scan scan, int window, TokenBucket probeRate, Set<String> localIPs,
+                           Map<String, Device> deviceMap, Consumer<Device> onFound) {
         try {
-            // Build nmap command to scan entire network
-            String[] nmapCommand = {nmapPath, "-p", String.valueOf(TARGET_PORT), subnet, "--open", "-oG", "-"};
-            logger.log("Executing: " + nmapPath + " -p " + TARGET_PORT + " " + subnet + " --open -oG -");
+            long now = System.currentTimeMillis();
+            Long lastSweep = sweptAt.get(shard.key);
+            boolean full = lastSweep == null || now - lastSweep >= transportConfig.getScanSweepTtl();
             
-            ProcessBuilder pb = new ProcessBuilder(nmapCommand);
-            Process process = pb.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            // Probe every host, or only the cached devices not seen for a while
+            Iterator<InetAddress> targets;
+            Set<String> probedIPs = new HashSet<>();
+            if (full) {
+                targets = hostsOf(shard);
+            } else {
+                List<InetAddress> stale = new ArrayList<>();
+                for (CachedDevice cached : cache.values()) {
+                    if (!cached.shard.equals(shard.key)) {
+                        continue;
+                    }
+                    if (now - cached.lastSeen < transportConfig.getScanPeerTtl()) {
+                        report(cached.device, localIPs, deviceMap, onFound);
+                    } else {
+                        stale.add(InetAddress.getByName(cached.device.getIpAddress()));
+                        probedIPs.add(cached.device.getIpAddress());
+                    }
+                }
+                targets = stale.iterator();
+            }
             
-            String line;
-            Pattern ipPattern = Pattern.compile("Host: (\\d+\\.\\d+\\.\\d+\\.\\d+) \\(([^)]*)\\)");
+            Set<String> answered = ConcurrentHashMap.newKeySet();
+            PortSweep sweep = new PortSweep(TARGET_PORT, window, CONNECT_TIMEOUT_MS, probeRate);
+            scan.add(sweep);
+            int probed = sweep.run(targets, address -> {
+                String ip = address.getHostAddress();
+                answered.add(ip);
+                CachedDevice cached = cache.computeIfAbsent(ip,
+                    key -> new CachedDevice(new Device(ip, "Unknown", true), shard.key));
+                cached.lastSeen = System.currentTimeMillis();
+                report(cached.device, localIPs, deviceMap, onFound);
+            });
+            if (scan.isCancelled()) {
+                logger.log("Swept " + probed + " hosts of " + shard.name + " (cancelled)");
+                return;
+            }
             
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("Host:")) {
-                    Matcher ipMatcher = ipPattern.matcher(line);
-                    if (ipMatcher.find()) {
-                        String ip = ipMatcher.group(1);
-                        String hostname = ipMatcher.group(2);
-                        if (hostname == null || hostname.isEmpty()) {
-                            hostname = "Unknown";
-                        }
-                        
-                        // Since we use --open flag, ALL devices returned by nmap have port 8080 open
-                        boolean portOpen = true;
-                        
-                        // Only add if not already in map (avoid duplicates from multiple networks)
-                        if (!deviceMap.containsKey(ip)) {
-                            Device device = new Device(ip, hostname, portOpen);
-                            
-                            // Mark if this is the local machine (check against all local IPs)
-                            if (ip.equals(localIP) || isLocalIP(ip)) {
-                                device.setMe(true);
-                                logger.log("Found ME: " + ip + " (" + hostname + ")");
-                            }
-                            
-                            deviceMap.put(ip, device);
-                            logger.log("Found device: " + ip + " (" + hostname + ") - Port 8080: OPEN");
-                        }
-                    }
+            // Forget the devices that were probed and did not answer
+            if (full) {
+                sweptAt.put(shard.key, now);
+            }
+            cache.values().removeIf(cached -> cached.shard.equals(shard.key)
+                && (full || probedIPs.contains(cached.device.getIpAddress()))
+                && !answered.contains(cached.device.getIpAddress()));
+            logger.log((full ? "Swept " : "Revalidated ") + probed + " hosts of " + shard.name);
+            
+        } catch (IOException e) {
+            logger.log("ERROR scanning " + shard.name + ": " + e.getMessage());
+        }
+    }
+    
+    private void report(Device device, Set<String> localIPs, Map<String, Device> deviceMap, Consumer<Device> onFound) {
+        String ip = device.getIpAddress();
+        
+        // Only add if not already in map (avoid duplicates from multiple networks)
+        if (deviceMap.putIfAbsent(ip, device) != null) {
+            return;
+        }
+        // Mark if this is the local machine (check against all local IPs)
+        if (localIPs.contains(ip)) {
+            device.setMe(true);
+            logger.log("Found ME: " + ip);
+        } else {
+            logger.log("Found device: " + ip + " - Port 8080: OPEN");
+        }
+        onFound.accept(device);
+    }
+    
+    /**
+     * Host ranges of the interfaces, overlaps merged, cut at SHARD_SIZE boundaries
+     */
+    private List<Shard> planShards(List<NetworkInfo> networks) {
+        List<NetworkInfo> ranges = new ArrayList<>(networks);
+        ranges.sort(Comparator.comparingLong(network -> network.first));
+        
+        List<Shard> shards = new ArrayList<>();
+        int i = 0;
+        while (i < ranges.size()) {
+            // Merge every range that overlaps or touches this one
+            NetworkInfo range = ranges.get(i);
+            long first = range.first;
+            long last = range.last;
+            Set<String> names = new LinkedHashSet<>();
+            for (; i < ranges.size() && ranges.get(i).first <= last + 1; i++) {
+                NetworkInfo next = ranges.get(i);
+                last = Math.max(last, next.last);
+                names.add(next.subnet);
+                logger.log("Scanning network: " + next.subnet + " (interface: " + next.interfaceName + ", local IP: " + next.localIP + ")");
+                if (!next.subnet.equals(next.declared)) {
+                    logger.log("Network " + next.declared + " is too large to sweep, sweeping " + next.subnet);
                 }
             }
+            String name = String.join(" + ", names);
             
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                logger.log("WARNING: nmap exited with code " + exitCode + " for subnet " + subnet);
+            long count = last / SHARD_SIZE - first / SHARD_SIZE + 1;
+            int index = 0;
+            for (long start = first; start <= last; ) {
+                long end = Math.min(last, (start / SHARD_SIZE + 1) * SHARD_SIZE - 1);
+                index++;
+                shards.add(new Shard(count > 1 ? name + " [" + index + "/" + count + "]" : name, start, end));
+                start = end + 1;
             }
+            logger.log("Scan plan: " + name + ", " + (last - first + 1) + " addresses in " + count + " shard(s)");
+        }
+        return shards;
+    }
+    
+    /**
+     * Addresses of a shard, created as the sweep takes them
+     */
+    private static Iterator<InetAddress> hostsOf(Shard shard) {
+        return new Iterator<>() {
+            private long next = shard.first;
             
-        } catch (Exception e) {
-            logger.log("ERROR scanning subnet " + subnet + ": " + e.getMessage());
-            e.printStackTrace();
+            @Override
+            public boolean hasNext() {
+                return next <= shard.last;
+            }
+            
+            @Override
+            public InetAddress next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return toAddress(next++);
+            }
+        };
+    }
+    
+    private static long toLong(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xffL) << 24) | ((bytes[1] & 0xffL) << 16) | ((bytes[2] & 0xffL) << 8) | (bytes[3] & 0xffL);
+    }
+    
+    private static InetAddress toAddress(long value) {
+        try {
+            return InetAddress.getByAddress(new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // Never for 4 bytes
+        }
+    }
+    
+    /**
+     * Reverse DNS name of a host, or null if it has none
+     */
+    private static String lookUpName(String ip) {
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+            String name = address.getCanonicalHostName();
+            return name.equals(ip) ? null : name;
+        } catch (UnknownHostException e) {
+            return null;
         }
     }
 
+    /**
+     * The local interfaces, read again after a network change or LOCAL_TTL_MS
+     */
+    private LocalNetworks localNetworks() {
+        LocalNetworks current = local;
+        if (current == null || System.currentTimeMillis() - current.readAt >= LOCAL_TTL_MS) {
+            current = new LocalNetworks(getAllNetworkInfo(), getLocalIPs());
+            local = current;
+        }
+        return current;
+    }
+
     private List<NetworkInfo> getAllNetworkInfo() {
         List<NetworkInfo> networks = new ArrayList<>();
         
@@ -155,16 +419,12 @@ public class NetworkScanner {
                     continue;
                 }
                 
-                Enumeration<InetAddress> addresses = iface.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
+                for (InterfaceAddress address : iface.getInterfaceAddresses()) {
+                    InetAddress addr = address.getAddress();
                     
-                    // We want IPv4 addresses only
-                    if (addr.isSiteLocalAddress() && !addr.isLoopbackAddress()) {
-                        String ip = addr.getHostAddress();
-                        String subnet = getSubnet(ip);
-                        NetworkInfo netInfo = new NetworkInfo(iface.getName(), ip, subnet);
-                        networks.add(netInfo);
+                    // We want private IPv4 addresses only
+                    if (addr instanceof Inet4Address && addr.isSiteLocalAddress()) {
+                        networks.add(new NetworkInfo(iface.getName(), addr, address.getNetworkPrefixLength()));
                     }
                 }
             }
@@ -176,7 +436,8 @@ public class NetworkScanner {
         return networks;
     }
 
-    private boolean isLocalIP(String ip) {
+    private Set<String> getLocalIPs() {
+        Set<String> localIPs = new HashSet<>();
         try {
             Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
             while (interfaces.hasMoreElements()) {
@@ -188,38 +449,82 @@ public class NetworkScanner {
                 
                 Enumeration<InetAddress> addresses = iface.getInetAddresses();
                 while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
-                    if (addr.getHostAddress().equals(ip)) {
-                        return true;
-                    }
+                    localIPs.add(addresses.nextElement().getHostAddress());
                 }
             }
         } catch (Exception e) {
             // Ignore
         }
-        return false;
+        return localIPs;
+    }
+
+    // A device found by an earlier scan
+    private static class CachedDevice {
+        final Device device;
+        final String shard;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        CachedDevice(Device device, String shard) {
+            this.device = device;
+            this.shard = shard;
+        }
+    }
+
+    // A run of addresses swept, and cached, as one unit
+    private static class Shard {
+        final String name;  // For the log and progress: the network, and the shard's place in it
+        final String key;   // The same for the same addresses in every scan
+        final long first;
+        final long last;
+
+        Shard(String name, long first, long last) {
+            this.name = name;
+            this.key = toAddress(first).getHostAddress() + "-" + toAddress(last).getHostAddress();
+            this.first = first;
+            this.last = last;
+        }
     }
 
-    private String getSubnet(String ipAddress) {
-        // Extract first 3 octets and add .0/24 for standard home network
-        String[] parts = ipAddress.split("\\.");
-        if (parts.length == 4) {
-            return parts[0] + "." + parts[1] + "." + parts[2] + ".0/24";
+    // The local interfaces as read at one time
+    private static class LocalNetworks {
+        final List<NetworkInfo> networks;
+        final Set<String> ips;
+        final long readAt = System.currentTimeMillis();
+
+        LocalNetworks(List<NetworkInfo> networks, Set<String> ips) {
+            this.networks = networks;
+            this.ips = ips;
         }
-        return "192.168.1.0/24"; // Default fallback
     }
 
     // Inner class to hold network information
     private static class NetworkInfo {
         String interfaceName;
         String localIP;
-        String subnet;
+        String declared;    // Network as configured, e.g. 10.0.0.0/8
+        String subnet;      // Network swept: the declared one, narrowed to MIN_PREFIX
+        long first;         // Host range of the swept network
+        long last;
 
-        NetworkInfo(String interfaceName, String localIP, String subnet) {
+        NetworkInfo(String interfaceName, InetAddress address, int prefixLength) {
             this.interfaceName = interfaceName;
-            this.localIP = localIP;
-            this.subnet = subnet;
+            this.localIP = address.getHostAddress();
+            if (prefixLength < 0 || prefixLength > 32) {
+                prefixLength = 24; // Some platforms report nonsense for IPv4; assume the usual
+            }
+            int swept = Math.max(prefixLength, MIN_PREFIX);
+            long ip = toLong(address);
+            this.declared = toAddress(ip & mask(prefixLength)).getHostAddress() + "/" + prefixLength;
+            long network = ip & mask(swept);
+            long broadcast = network | (~mask(swept) & 0xffffffffL);
+            this.subnet = toAddress(network).getHostAddress() + "/" + swept;
+            // A /31 (point-to-point) or /32 has no network and broadcast addresses to skip
+            this.first = swept >= 31 ? network : network + 1;
+            this.last = swept >= 31 ? broadcast : broadcast - 1;
+        }
+
+        private static long mask(int prefixLength) {
+            return prefixLength == 0 ? 0 : (0xffffffffL << (32 - prefixLength)) & 0xffffffffL;
         }
     }
 }
- 
@@ -0,0 +1,47 @@
+package com.filetransfer.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * End-to-end payload checksum. Both sides update a CRC32C while the bytes stream through
+ * the copy loops; the sender then writes the value as an 8-byte trailer after the payload
+ * (one trailer per connection, so each stripe is checked on its own).
+ */
+public final class PayloadChecksum {
+    
+    public static final String CRC32C = "crc32c";
+    
+    private PayloadChecksum() {
+    }
+    
+    /**
+     * New checksum, or null when the transfer does not use one
+     */
+    public static Checksum create(boolean enabled) {
+        return enabled ? new CRC32C() : null;
+    }
+    
+    public static void writeTrailer(OutputStream out, Checksum checksum) throws IOException {
+        DataOutputStream trailer = new DataOutputStream(out);
+        trailer.writeLong(checksum.getValue());
+        trailer.flush();
+    }
+    
+    /**
+     * Read the sender's trailer and compare it with what was received
+     * @throws ChecksumMismatchException if the values differ
+     */
+    public static void verifyTrailer(DataInputStream in, Checksum checksum, String what) throws IOException {
+        long expected = in.readLong();
+        long actual = checksum.getValue();
+        if (expected != actual) {
+            throw new ChecksumMismatchException(String.format("Checksum mismatch for %s (expected %08x, got %08x)",
+                what, expected, actual));
+        }
+    }
+}
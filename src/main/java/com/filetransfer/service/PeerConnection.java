@@ -0,0 +1,290 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Logger;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A long-lived connection to a peer that carries many concurrent streams (see MuxStream),
+ * so handshakes and small transfers do not each pay for a new TCP connection.
+ *
+ * The connecting side sends the text line MUX:1 on port 8080 and waits for OK:MUX; older
+ * peers drop the line as unknown, and the caller falls back to plain connections.
+ * After that both directions carry length-prefixed frames:
+ *
+ *   int payloadLength, byte type, int streamId, payload
+ *
+ * OPEN starts a stream (connecting side only), DATA carries its bytes, CLOSE ends it and
+ * WINDOW (payload: int bytes) lets the sender put that many more bytes in flight.
+ */
+public class PeerConnection {
+
+    public static final String HELLO = "MUX:1";
+    public static final String HELLO_OK = "OK:MUX";
+    static final int STREAM_WINDOW = 1024 * 1024;
+    static final int MAX_DATA_FRAME = 64 * 1024;
+    private static final int ACCEPT_IDLE_TIMEOUT_MS = 120000; // Twice the pool's idle timeout
+
+    private static final byte OPEN = 1;
+    private static final byte DATA = 2;
+    private static final byte CLOSE = 3;
+    private static final byte WINDOW = 4;
+
+    private final Logger logger;
+    private final Socket socket;
+    private final String peerIP;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock(); // A lock, not a monitor: writers may block on the socket
+    private final Consumer<MuxStream> acceptor; // Handles streams the peer opens; null on the connecting side
+    private final Map<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+    private int nextStreamId = 1;
+    private volatile boolean closed;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private PeerConnection(Socket socket, Logger logger, Consumer<MuxStream> acceptor) throws IOException {
+        this.logger = logger;
+        this.socket = socket;
+        this.peerIP = socket.getInetAddress().getHostAddress();
+        this.acceptor = acceptor;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_DATA_FRAME + 9));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_DATA_FRAME + 9));
+    }
+
+    /**
+     * Connect to a peer and switch the connection to frames
+     * @return the connection, or null if the peer does not support multiplexing
+     */
+    public static PeerConnection connect(String host, int port, TransportConfig transportConfig,
+                                         Logger logger) throws IOException {
+        Socket socket = new Socket();
+        try {
+            transportConfig.applyTo(socket, host);
+            socket.setTcpNoDelay(true); // Frames of many streams are small and waited for, whatever the setting
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), transportConfig.getConnectTimeout(host));
+            socket.setSoTimeout(transportConfig.getCommandTimeout());
+
+            OutputStream helloOut = socket.getOutputStream();
+            helloOut.write((HELLO + "\n").getBytes(StandardCharsets.US_ASCII));
+            helloOut.flush();
+            if (!HELLO_OK.equals(TransferRequest.readLine(socket.getInputStream()))) {
+                socket.close();
+                return null;
+            }
+            socket.setSoTimeout(0);
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            return null;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        PeerConnection connection = new PeerConnection(socket, logger, null);
+        Threads.start("mux-" + host, true, connection::readLoop);
+        logger.log("Multiplexed connection to " + host + " opened");
+        return connection;
+    }
+
+    /**
+     * Serve an accepted connection whose HELLO was already answered. Runs the frame loop in
+     * the calling thread and hands every stream the peer opens to the acceptor.
+     */
+    public static void serve(Socket socket, Logger logger, Consumer<MuxStream> acceptor) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        // Wake up now and then to drop the connection once the peer has stopped using it
+        socket.setSoTimeout(ACCEPT_IDLE_TIMEOUT_MS);
+        new PeerConnection(socket, logger, acceptor).readLoop();
+    }
+
+    /**
+     * Open a new stream to the peer
+     */
+    public MuxStream openStream() throws IOException {
+        MuxStream stream;
+        synchronized (this) {
+            if (closed) {
+                throw new SocketException("Connection to " + peerIP + " is closed");
+            }
+            stream = new MuxStream(this, nextStreamId++);
+            streams.put(stream.getId(), stream);
+        }
+        try {
+            writeFrame(OPEN, stream.getId(), null, 0, 0);
+        } catch (IOException e) {
+            streams.remove(stream.getId());
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Close the connection if no stream has been open for idleMillis
+     * @return true if it is closed (now or before)
+     */
+    public synchronized boolean closeIfIdle(long idleMillis) {
+        if (!closed && streams.isEmpty() && System.currentTimeMillis() - lastUsed > idleMillis) {
+            logger.log("Closing idle multiplexed connection to " + peerIP);
+            close(null);
+        }
+        return closed;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    void sendData(int streamId, byte[] data, int offset, int length) throws IOException {
+        writeFrame(DATA, streamId, data, offset, length);
+    }
+
+    void sendWindowUpdate(int streamId, int bytes) throws IOException {
+        byte[] payload = {(byte) (bytes >>> 24), (byte) (bytes >>> 16), (byte) (bytes >>> 8), (byte) bytes};
+        writeFrame(WINDOW, streamId, payload, 0, payload.length);
+    }
+
+    void closeStream(MuxStream stream) {
+        if (streams.remove(stream.getId()) != null && !closed) {
+            try {
+                writeFrame(CLOSE, stream.getId(), null, 0, 0);
+            } catch (IOException ignored) {
+                // The connection is gone, and the stream with it
+            }
+        }
+    }
+
+    private void writeFrame(byte type, int streamId, byte[] payload, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new SocketException("Connection to " + peerIP + " is closed");
+            }
+            try {
+                out.writeInt(length);
+                out.writeByte(type);
+                out.writeInt(streamId);
+                if (length > 0) {
+                    out.write(payload, offset, length);
+                }
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    private void readLoop() {
+        IOException failure = null;
+        try {
+            while (!closed) {
+                int first;
+                try {
+                    first = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (streams.isEmpty()) {
+                        logger.log("Multiplexed connection from " + peerIP + " idle, closing it");
+                        break;
+                    }
+                    continue;
+                }
+                if (first == -1) {
+                    break;
+                }
+                int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                byte type = in.readByte();
+                int streamId = in.readInt();
+                if (length < 0 || length > MAX_DATA_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                lastUsed = System.currentTimeMillis();
+                readFrame(type, streamId, length);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.log("Multiplexed connection to " + peerIP + " lost: " + e.getMessage());
+            }
+            failure = e;
+        } finally {
+            close(failure);
+        }
+    }
+
+    private void readFrame(byte type, int streamId, int length) throws IOException {
+        MuxStream stream = streams.get(streamId);
+        switch (type) {
+            case OPEN:
+                if (acceptor == null || stream != null || length != 0) {
+                    throw new IOException("Unexpected stream " + streamId);
+                }
+                stream = new MuxStream(this, streamId);
+                streams.put(streamId, stream);
+                acceptor.accept(stream);
+                break;
+            case DATA:
+                byte[] data = new byte[length];
+                in.readFully(data);
+                // Frames still in flight for a stream we closed are dropped
+                if (stream != null) {
+                    stream.receive(data);
+                }
+                break;
+            case CLOSE:
+                in.skipNBytes(length);
+                if (stream != null) {
+                    stream.remoteClose();
+                }
+                break;
+            case WINDOW:
+                if (length != 4) {
+                    throw new IOException("Invalid window update");
+                }
+                int bytes = in.readInt();
+                if (stream != null) {
+                    stream.grant(bytes);
+                }
+                break;
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+
+        IOException failure = new SocketException("Connection to " + peerIP + " lost"
+            + (cause != null ? ": " + cause.getMessage() : ""));
+        for (MuxStream stream : new ArrayList<>(streams.values())) {
+            stream.fail(failure);
+        }
+    }
+}
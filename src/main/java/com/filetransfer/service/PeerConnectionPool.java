@@ -0,0 +1,99 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Logger;
+import com.filetransfer.util.TransportConfig;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One PeerConnection per peer, opened on first use, reopened after it is lost and closed
+ * after a minute without streams. Peers that do not answer the hello (older versions) are
+ * remembered and get plain connections until they are handshaken with again.
+ */
+public class PeerConnectionPool {
+
+    private static final int PORT = 8080;
+    private static final long IDLE_TIMEOUT_MS = 60000;
+
+    private final Logger logger;
+    private final TransportConfig transportConfig;
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final Set<String> plainPeers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mux-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PeerConnectionPool(Logger logger) {
+        this(logger, TransportConfig.defaults());
+    }
+    
+    public PeerConnectionPool(Logger logger, TransportConfig transportConfig) {
+        this.logger = logger;
+        this.transportConfig = transportConfig;
+        reaper.scheduleWithFixedDelay(this::closeIdle, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open a stream to the peer over its pooled connection, connecting or reconnecting as needed
+     * @return the stream, or null if the peer only takes plain connections
+     */
+    public Socket openStream(String peerIP) throws IOException {
+        if (plainPeers.contains(peerIP)) {
+            return null;
+        }
+
+        // A pooled connection may turn out to be dead only when used: reconnect once
+        for (int attempt = 0; ; attempt++) {
+            PeerConnection connection = connect(peerIP);
+            if (connection == null) {
+                return null;
+            }
+            try {
+                return connection.openStream();
+            } catch (IOException e) {
+                connections.remove(peerIP, connection);
+                if (attempt > 0) {
+                    throw e;
+                }
+                logger.log("Multiplexed connection to " + peerIP + " lost, reconnecting");
+            }
+        }
+    }
+
+    /**
+     * Try multiplexing with a peer again, e.g. after it was updated
+     */
+    public void forgetPlainPeer(String peerIP) {
+        plainPeers.remove(peerIP);
+    }
+
+    private synchronized PeerConnection connect(String peerIP) throws IOException {
+        PeerConnection connection = connections.get(peerIP);
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+
+        connection = PeerConnection.connect(peerIP, PORT, transportConfig, logger);
+        if (connection == null) {
+            logger.log(peerIP + " does not support multiplexed connections, using one connection per transfer");
+            plainPeers.add(peerIP);
+            connections.remove(peerIP);
+            return null;
+        }
+        connections.put(peerIP, connection);
+        return connection;
+    }
+
+    private void closeIdle() {
+        connections.entrySet().removeIf(entry -> entry.getValue().closeIfIdle(IDLE_TIMEOUT_MS));
+    }
+}
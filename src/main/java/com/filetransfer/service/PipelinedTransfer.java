@@ -0,0 +1,146 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Threads;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Checksum;
+
+/**
+ * Copy loops that overlap disk and network I/O (PIPELINED engine).
+ *
+ * A reader thread fills buffers from the source while the calling thread drains the previous
+ * ones to the target, through a small ring of reusable direct buffers. Sending, the next disk
+ * read runs while the last block is on the wire; receiving, the socket keeps being read while
+ * the last block is written to the mailbox. This pays off when one side has high latency per
+ * operation, such as a file on a network share.
+ */
+public final class PipelinedTransfer {
+
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0); // Reader stage gave up, see failure
+
+    private PipelinedTransfer() {
+    }
+
+    private interface Source {
+        int read(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    private interface Target {
+        void write(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    /**
+     * Send a file region, reading ahead of the socket writes
+     */
+    public static void send(FileChannel source, long position, long count, WritableByteChannel target,
+                            TransferProgress progress, Checksum checksum) throws IOException {
+        copy(source::read, (buffer, at) -> {
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }, position, count, false, "File ended", progress, checksum);
+    }
+
+    /**
+     * Receive exactly count bytes into a file region, reading the socket ahead of the disk writes
+     */
+    public static void receive(ReadableByteChannel source, FileChannel target, long position, long count,
+                               TransferProgress progress, Checksum checksum) throws IOException {
+        copy((buffer, at) -> source.read(buffer), (buffer, at) -> {
+            while (buffer.hasRemaining()) {
+                at += target.write(buffer, at);
+            }
+        }, position, count, true, "Connection closed", progress, checksum);
+    }
+
+    /**
+     * Move count bytes from source to target, starting at position on the file side.
+     * The socket side is the one paced against the rate limits: the reader when receiving,
+     * the writer when sending.
+     */
+    private static void copy(Source source, Target target, long position, long count, boolean networkSource,
+                             String endMessage, TransferProgress progress, Checksum checksum) throws IOException {
+        int bufferSize = (int) Math.max(1, Math.min(BUFFER_SIZE, count));
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        Exception[] failure = new Exception[1]; // Published through the filled queue
+
+        long end = position + count;
+        Thread reader = Threads.newThread("pipeline-reader", true, () -> {
+            long offset = position;
+            try {
+                while (offset < end) {
+                    ByteBuffer buffer = free.take();
+                    buffer.clear();
+                    buffer.limit((int) Math.min(progress.limitChunk(buffer.capacity()), end - offset));
+                    while (buffer.hasRemaining()) {
+                        int read = source.read(buffer, offset + buffer.position());
+                        if (read == -1) {
+                            throw new EOFException(endMessage + " after " + (offset + buffer.position() - position)
+                                + " of " + count + " bytes");
+                        }
+                        if (networkSource) {
+                            progress.pace(read);
+                        }
+                    }
+                    buffer.flip();
+                    offset += buffer.remaining();
+                    filled.put(buffer);
+                }
+            } catch (InterruptedException e) {
+                // The writer stage failed and is no longer taking buffers
+            } catch (Exception e) {
+                failure[0] = e;
+                filled.add(FAILED);
+            }
+        });
+        reader.start();
+
+        long offset = position;
+        try {
+            while (offset < end) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == FAILED) {
+                    throw failure[0] instanceof IOException ? (IOException) failure[0]
+                        : new IOException("Read failed: " + failure[0], failure[0]);
+                }
+                int length = buffer.remaining();
+                ChannelTransfer.update(checksum, buffer);
+                target.write(buffer, offset);
+                offset += length;
+                progress.advance(length);
+                if (!networkSource) {
+                    progress.pace(length);
+                }
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during transfer");
+        } finally {
+            if (offset < end) {
+                // Unblocks the reader; an interrupted channel read closes the channel, which the
+                // caller is about to do anyway
+                reader.interrupt();
+            }
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -1,28 +1,56 @@
 package com.filetransfer.service;
 
+import com.filetransfer.model.BatchTransferTask;
 import com.filetransfer.model.TransferTask;
 import com.filetransfer.util.Logger;
 import com.filetransfer.util.SessionManager;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-public class PortListener implements Runnable {
+/**
+ * Listens on port 8080. A few selector threads (ListenerLoop) accept connections, read their
+ * first message without blocking and answer handshakes; requests and stripes continue on a
+ * bounded pool of worker threads, which is where the blocking file I/O happens. Requests
+ * waiting for the user's approval hold no thread.
+ */
+public class PortListener implements Runnable, ListenerLoop.Handler {
     
     private static final int PORT = 8080;
-    private static final String HANDSHAKE = "miyabi69";
+    private static final int WORKER_QUEUE_SIZE = 1000;
+    private static final long APPROVAL_WAIT_MS = 5 * 60 * 1000; // 5 minutes max wait
     
     private Logger logger;
-    private ServerSocket serverSocket;
-    private boolean running = false;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+    private final List<ListenerLoop> loops = new ArrayList<>();
+    private ThreadPoolExecutor workers;
     private List<HandshakeListener> listeners = new ArrayList<>();
     private FileTransferService fileTransferService;
     private SessionManager sessionManager;
     private FileReceiveAuthorizationListener authorizationListener;
     private TransferQueueManager queueManager;
+    private final Map<String, StripedReceive> stripedReceives = new ConcurrentHashMap<>(); // clientIP|sequenceId -> receive
+    private int maxStripes = 8;
+    private TransportConfig transportConfig = TransportConfig.defaults();
+    private BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
     
     public PortListener(Logger logger, FileTransferService fileTransferService, SessionManager sessionManager) {
         this.logger = logger;
@@ -34,6 +62,24 @@ public class PortListener implements Runnable {
         this.queueManager = queueManager;
     }
     
+    /**
+     * Upper bound on the stripe count accepted from senders (1 disables striping)
+     */
+    public void setMaxStripes(int maxStripes) {
+        this.maxStripes = Math.max(1, maxStripes);
+    }
+    
+    /**
+     * Socket options and timeouts for accepted connections; set before start
+     */
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+    
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+    
     public void setAuthorizationListener(FileReceiveAuthorizationListener listener) {
         this.authorizationListener = listener;
     }
@@ -65,9 +111,7 @@ public class PortListener implements Runnable {
             return;
         }
         
-        Thread thread = new Thread(this);
-        thread.setDaemon(true);
-        thread.start();
+        Threads.start("port-listener", true, this);
     }
     
     @Override
@@ -80,117 +124,206 @@ public class PortListener implements Runnable {
         }
         
         try {
-            serverSocket = new ServerSocket(PORT);
-            running = true;
-            logger.log("Listening on port " + PORT + "...");
+            // Accepted sockets expose a SocketChannel for the receive engine
+            serverChannel = ServerSocketChannel.open();
+            transportConfig.applyTo(serverChannel.socket());
+            serverChannel.bind(new InetSocketAddress(PORT), WORKER_QUEUE_SIZE);
             
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    // Handle each connection in a separate thread
-                    new Thread(() -> handleConnection(clientSocket)).start();
-                } catch (IOException e) {
-                    if (running) {
-                        logger.log("Error accepting connection: " + e.getMessage());
-                    }
-                }
+            // The pool bounds concurrent transfers with platform and virtual threads alike
+            workers = new ThreadPoolExecutor(transportConfig.getWorkers(), transportConfig.getWorkers(),
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE),
+                Threads.factory("listener-worker-", true));
+            workers.allowCoreThreadTimeOut(true);
+            
+            ListenerLoop[] targets = new ListenerLoop[transportConfig.getEventLoops()];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = new ListenerLoop("listener-loop-" + i, logger, transportConfig.getCommandTimeout(), this);
+                loops.add(targets[i]);
+            }
+            targets[0].listen(serverChannel, targets);
+            running = true;
+            for (ListenerLoop loop : targets) {
+                loop.start();
             }
+            logger.log("Listening on port " + PORT + "... (" + targets.length + " event loops, up to "
+                + transportConfig.getWorkers() + " workers)");
         } catch (IOException e) {
             logger.log("ERROR: Could not start listener on port " + PORT + ": " + e.getMessage());
         }
     }
     
+    /**
+     * First message of a connection accepted by a listener loop, on the loop thread:
+     * parsed here, then handled like any connection. The channel is in blocking mode again.
+     */
+    @Override
+    public void onFirstMessage(SocketChannel channel, byte[] data, int messageLength, int length) {
+        Socket socket = channel.socket();
+        String clientIP = socket.getInetAddress().getHostAddress();
+        try {
+            transportConfig.applyTo(socket, clientIP);
+            socket.setSoTimeout(transportConfig.getCommandTimeout());
+            ControlChannel.Command message = ControlChannel.parseCommand(data, messageLength);
+            ControlChannel control = ControlChannel.accepted(socket, data, messageLength, length);
+            dispatch(socket, clientIP, control, message);
+        } catch (IOException e) {
+            logger.log("Connection error with " + clientIP + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+    
+    @Override
+    public void onDropped(String clientIP, String reason) {
+        logger.log("Ignored connection from " + clientIP + ": " + reason);
+    }
+    
+    /**
+     * Handle a stream of a multiplexed connection (on a worker thread)
+     */
     private void handleConnection(Socket socket) {
         String clientIP = socket.getInetAddress().getHostAddress();
         
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            
             // Read the first message with timeout
-            socket.setSoTimeout(5000); // 5 second timeout
-            String message = in.readLine();
-            
-            logger.log("Received message from " + clientIP + ": " + (message != null ? message : "NULL"));
-            
-            if (message != null) {
-                // Only accept handshake or file transfer messages
-                if (HANDSHAKE.equals(message)) {
-                    // Valid handshake received
-                    logger.log("Valid handshake from " + clientIP);
-                    
-                    // Add to session manager
-                    sessionManager.addCompatibleDevice(clientIP);
-                    
-                    // Respond with handshake
-                    out.println(HANDSHAKE);
-                    logger.log("Sent handshake response to " + clientIP);
-                    
-                    // Notify listeners to mark device as compatible
-                    for (HandshakeListener listener : listeners) {
-                        listener.onCompatibleDeviceFound(clientIP);
-                    }
-                } else if (message.startsWith("TRANSFER_REQUEST:")) {
-                    // NEW PROTOCOL: Receive metadata packet first
-                    // Format: TRANSFER_REQUEST:sequenceId:fileName:fileSize
-                    handleTransferRequest(socket, clientIP, message, out);
-                } else {
-                    // Ignore any other traffic (not handshake or transfer request)
-                    logger.log("Ignored invalid message from " + clientIP + " (not handshake/transfer)");
-                    socket.close();
-                    return;
+            socket.setSoTimeout(transportConfig.getCommandTimeout());
+            // Binary control frames or, from older peers, text lines
+            ControlChannel control = ControlChannel.accept(socket);
+            ControlChannel.Command message = control != null ? control.receiveCommand() : null;
+            dispatch(socket, clientIP, control, message);
+        } catch (IOException e) {
+            logger.log("Connection error with " + clientIP + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+    
+    /**
+     * Act on the first message of a connection. Handshakes are answered at once; everything
+     * that may block goes to a worker.
+     */
+    private void dispatch(Socket socket, String clientIP, ControlChannel control,
+                          ControlChannel.Command message) throws IOException {
+        logger.log("Received message from " + clientIP + ": " + (message != null ? message.getText() : "NULL"));
+        
+        if (message != null) {
+            // Only accept handshake or file transfer messages
+            if (message.getKind() == ControlChannel.Kind.HANDSHAKE) {
+                // Valid handshake received
+                logger.log("Valid handshake from " + clientIP);
+                
+                // Add to session manager, answering later requests in the peer's protocol
+                sessionManager.addCompatibleDevice(clientIP);
+                sessionManager.setBinaryControl(clientIP, control.isBinary());
+                
+                // Respond with handshake
+                control.sendHandshake();
+                logger.log("Sent handshake response to " + clientIP);
+                
+                // Notify listeners to mark device as compatible
+                for (HandshakeListener listener : listeners) {
+                    listener.onCompatibleDeviceFound(clientIP);
                 }
+                socket.close();
+            } else if (message.getKind() == ControlChannel.Kind.MUX && !(socket instanceof MuxStream)) {
+                // Long-lived connection on a thread of its own; every stream the peer opens on
+                // it is handled like a connection, on a worker
+                control.sendLine(PeerConnection.HELLO_OK);
+                logger.log("Multiplexed connection from " + clientIP);
+                Threads.start("mux-" + clientIP, true, () -> {
+                    try {
+                        PeerConnection.serve(socket, logger, stream -> execute(stream, () -> handleConnection(stream)));
+                    } catch (IOException e) {
+                        logger.log("Multiplexed connection from " + clientIP + " closed: " + e.getMessage());
+                    }
+                });
+            } else if (message.getKind() == ControlChannel.Kind.TRANSFER_REQUEST) {
+                // NEW PROTOCOL: Receive metadata packet first
+                // Format: TRANSFER_REQUEST:sequenceId:fileName:fileSize
+                execute(socket, () -> handleTransferRequest(socket, clientIP, message, control));
+            } else if (message.getKind() == ControlChannel.Kind.BATCH_REQUEST) {
+                // Several files under one approval, the manifest follows
+                execute(socket, () -> handleBatchRequest(socket, clientIP, message, control));
+            } else if (message.getKind() == ControlChannel.Kind.STRIPE) {
+                // Extra connection of an approved striped transfer
+                // Format: STRIPE:sequenceId:index
+                execute(socket, () -> handleStripe(socket, clientIP, message.getText(), control));
             } else {
-                // Empty message, ignore
-                logger.log("Ignored empty message from " + clientIP);
+                // Ignore any other traffic (not handshake or transfer request)
+                logger.log("Ignored invalid message from " + clientIP + " (not handshake/transfer)");
                 socket.close();
-                return;
             }
-            
+        } else {
+            // Empty message, ignore
+            logger.log("Ignored empty message from " + clientIP);
+            socket.close();
+        }
+    }
+    
+    /**
+     * Run blocking work for a connection on the worker pool; if the pool and its queue are
+     * full the connection is dropped, which senders treat as a refusal
+     */
+    private void execute(Socket socket, Runnable work) {
+        try {
+            workers.execute(work);
+        } catch (RejectedExecutionException e) {
+            logger.log("Listener busy, dropping connection from " + socket.getInetAddress().getHostAddress());
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+    
+    /**
+     * Refuse a request with KO:reason and drop the connection
+     */
+    private void refuse(Socket socket, ControlChannel control, String reason) {
+        try {
+            control.sendReply("KO", reason, null);
+        } catch (IOException ignored) {
+            // The sender treats a closed connection as a refusal too
+        }
+        try {
+            socket.close();
         } catch (IOException e) {
-            logger.log("Connection error with " + clientIP + ": " + e.getMessage());
+            logger.log("Error closing socket: " + e.getMessage());
         }
     }
     
-    private void handleTransferRequest(Socket socket, String clientIP, String message, PrintWriter out) {
+    private void handleTransferRequest(Socket socket, String clientIP, ControlChannel.Command message,
+                                       ControlChannel control) {
         try {
             logger.log("=== HANDLING TRANSFER REQUEST ===");
             logger.log("From: " + clientIP);
-            logger.log("Message: " + message);
+            logger.log("Message: " + message.getText());
             
             // Check if sender is in compatible devices list
             if (!sessionManager.isCompatible(clientIP)) {
                 logger.log("REJECTED: Transfer request from " + clientIP + " - No handshake performed");
-                out.println("KO:NO_HANDSHAKE");
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    logger.log("Error closing socket: " + e.getMessage());
-                }
+                refuse(socket, control, "NO_HANDSHAKE");
                 return;
             }
             
-            // Parse: TRANSFER_REQUEST:sequenceId:fileName:fileSize
-            String[] parts = message.split(":", 4);
-            if (parts.length < 4) {
-                logger.log("ERROR: Invalid transfer request format from " + clientIP);
-                out.println("KO:INVALID_FORMAT");
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    logger.log("Error closing socket: " + e.getMessage());
-                }
-                return;
-            }
+            // Parse: TRANSFER_REQUEST:sequenceId:fileName:fileSize[:KEY=value]... or its binary frame
+            TransferRequest request = message.getRequest();
             
-            String sequenceId = parts[1];
-            String fileName = parts[2];
-            long fileSize = Long.parseLong(parts[3]);
+            String sequenceId = request.getSequenceId();
+            String fileName = request.getFileName();
+            long fileSize = request.getFileSize();
             
             logger.log("Transfer request received: " + fileName + " (" + fileSize + " bytes) from " + clientIP + " [" + sequenceId + "]");
             
             // Create incoming transfer task and add to queue
             if (queueManager != null) {
+                // A retry of a failed transfer replaces its stale task
+                TransferTask previous = queueManager.findTaskByExternalId(clientIP, sequenceId);
+                if (previous != null && previous.getStatus() != TransferTask.TransferStatus.TRANSFERRING) {
+                    queueManager.removeTask(previous.getId());
+                }
+                
                 TransferTask task = new TransferTask(fileName, clientIP, fileSize, 
                     TransferTask.TransferDirection.INCOMING);
                 // Use the sender's sequence ID
@@ -199,172 +332,562 @@ public class PortListener implements Runnable {
                 
                 logger.log("Incoming file added to queue: " + fileName + " from " + clientIP);
                 
+                // A part file this peer left for the same sequence ID and size means the user already approved it once
+                if (request.getOption(TransferRequest.RESUME) != null
+                        && fileTransferService.getResumableOffset(task.getFileName(), sequenceId, clientIP, fileSize) > 0) {
+                    logger.log("Resuming previously approved transfer: " + fileName + " [" + sequenceId + "]");
+                    queueManager.updateTaskStatus(task.getId(), TransferTask.TransferStatus.APPROVED);
+                }
+                
                 // Handle the transfer with queue (waits for approval)
-                handleIncomingTransferWithQueue(socket, task, clientIP, fileName, fileSize, sequenceId, out);
+                handleIncomingTransferWithQueue(socket, task, clientIP, request, control);
             } else {
                 // No queue manager - reject
                 logger.log("ERROR: Queue manager not available");
-                out.println("KO:NO_QUEUE_MANAGER");
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    logger.log("Error closing socket: " + e.getMessage());
-                }
+                refuse(socket, control, "NO_QUEUE_MANAGER");
             }
             
         } catch (NumberFormatException e) {
             logger.log("ERROR: Invalid file size in transfer request from " + clientIP);
-            out.println("KO:INVALID_SIZE");
-            try {
-                socket.close();
-            } catch (IOException ignored) {}
+            refuse(socket, control, "INVALID_SIZE");
+        } catch (IllegalArgumentException e) {
+            logger.log("ERROR: Invalid transfer request format from " + clientIP);
+            refuse(socket, control, "INVALID_FORMAT");
         }
     }
     
-    private void handleIncomingTransferWithQueue(Socket socket, TransferTask task, 
-                                                  String clientIP, String fileName, long fileSize,
-                                                  String sequenceId, PrintWriter outputWriter) {
-        // This runs in a separate thread to keep socket alive while waiting for approval
-        new Thread(() -> {
+    private void handleIncomingTransferWithQueue(Socket socket, TransferTask task, String clientIP,
+                                                  TransferRequest request, ControlChannel control) {
+        String fileName = task.getFileName();
+        String sequenceId = request.getSequenceId();
+        
+        // The socket stays open while waiting for approval; the rest runs on a worker once decided
+        whenDecided(task, socket, status -> {
             try {
-                // Wait for task to be approved or rejected (with timeout)
-                int maxWaitSeconds = 300; // 5 minutes max wait
-                int waited = 0;
-                
-                while (waited < maxWaitSeconds) {
-                    TransferTask.TransferStatus status = task.getStatus();
-                    
-                    if (status == TransferTask.TransferStatus.APPROVED || 
-                        status == TransferTask.TransferStatus.TRANSFERRING) {
-                        // User approved, send OK response with sequence ID
-                        outputWriter.println("OK:" + sequenceId);
-                        outputWriter.flush();
-                        logger.log("Transfer approved, receiving file: " + fileName + " [" + sequenceId + "]");
-                        
-                        // Mark as transferring (if not already)
-                        if (status != TransferTask.TransferStatus.TRANSFERRING) {
-                            queueManager.updateTaskStatus(task.getId(), TransferTask.TransferStatus.TRANSFERRING);
-                        }
-                        
-                        // Receive the file
-                        receiveFileForTask(socket, task);
+                if (status == TransferTask.TransferStatus.APPROVED || 
+                    status == TransferTask.TransferStatus.TRANSFERRING) {
+                    // Nothing to receive if the mailbox already has this content
+                    if (completeFromMailbox(socket, task, request, control)) {
                         return;
-                        
-                    } else if (status == TransferTask.TransferStatus.REJECTED || 
-                               status == TransferTask.TransferStatus.CANCELLED) {
-                        // User rejected, send KO response with sequence ID
-                        outputWriter.println("KO:" + sequenceId);
-                        outputWriter.flush();
-                        logger.log("Transfer rejected by user: " + fileName + " [" + sequenceId + "]");
+                    }
+                    
+                    // Resume from the part file of an earlier attempt if the sender supports it
+                    Map<String, String> replyOptions = new LinkedHashMap<>();
+                    long offset = 0;
+                    if (request.getOption(TransferRequest.RESUME) != null) {
+                        offset = fileTransferService.getResumableOffset(fileName, sequenceId, clientIP, request.getFileSize());
+                        replyOptions.put(TransferRequest.OFFSET, String.valueOf(offset));
+                    }
+                    
+                    // Refuse before OK if the mailbox disk cannot hold the rest of the file
+                    if (!fileTransferService.hasFreeSpaceFor(request.getFileSize() - offset)) {
+                        control.sendReply("KO", sequenceId,
+                            Map.of(TransferRequest.REASON, TransferRequest.REASON_NO_SPACE));
+                        logger.log("Transfer refused, not enough disk space: " + fileName + " [" + sequenceId + "]");
+                        queueManager.markTaskFailed(task.getId(), "Not enough free disk space");
                         socket.close();
                         return;
                     }
                     
-                    // Still pending, wait a bit
-                    Thread.sleep(1000);
-                    waited++;
+                    // Rebuild from the mailbox copy of the same name if the sender can send a delta
+                    // (fresh transfers only; a delta is neither compressed nor striped)
+                    File deltaBase = null;
+                    if (offset == 0 && request.getOption(TransferRequest.DELTA) != null) {
+                        deltaBase = fileTransferService.getDeltaBase(task.getFileName());
+                        if (deltaBase != null) {
+                            replyOptions.put(TransferRequest.DELTA, "1");
+                        }
+                    }
+                    
+                    // Accept compression if the sender offers a codec we know
+                    boolean compressed = deltaBase == null
+                        && BlockCompression.CODEC_DEFLATE.equals(request.getOption(TransferRequest.COMPRESS));
+                    if (compressed) {
+                        replyOptions.put(TransferRequest.COMPRESS, BlockCompression.CODEC_DEFLATE);
+                    }
+                    boolean checksummed = PayloadChecksum.CRC32C.equals(request.getOption(TransferRequest.CHECKSUM));
+                    if (checksummed) {
+                        replyOptions.put(TransferRequest.CHECKSUM, PayloadChecksum.CRC32C);
+                    }
+                    
+                    // Accept up to maxStripes parallel streams if the sender offered them (not when resuming);
+                    // the striped receive must be registered before OK lets the stripes connect
+                    StripedReceive striped = null;
+                    if (request.getOption(TransferRequest.STRIPES) != null) {
+                        int stripes = offset > 0 || deltaBase != null ? 1 : Math.min(maxStripes,
+                            TransferRequest.intOption(request.getOptions(), TransferRequest.STRIPES, 1));
+                        if (stripes > 1) {
+                            striped = openStripedReceive(task, stripes, compressed, checksummed);
+                        }
+                        replyOptions.put(TransferRequest.STRIPES, String.valueOf(Math.max(1, stripes)));
+                    }
+                    
+                    // Only this peer may later resume the part file without asking again
+                    fileTransferService.recordPartOwner(
+                        fileTransferService.getPartFile(fileName, sequenceId), clientIP, request.getFileSize());
+                    
+                    // User approved, send OK response with sequence ID
+                    try {
+                        sendApproval(socket, control, request, replyOptions);
+                    } catch (IOException e) {
+                        if (striped != null) {
+                            dropStripedReceive(task, striped);
+                        }
+                        throw e;
+                    }
+                    logger.log("Transfer approved, receiving file: " + fileName + " [" + sequenceId + "]");
+                    
+                    // Mark as transferring (if not already)
+                    if (status != TransferTask.TransferStatus.TRANSFERRING) {
+                        queueManager.updateTaskStatus(task.getId(), TransferTask.TransferStatus.TRANSFERRING);
+                    }
+                    
+                    // Receive the file
+                    if (striped != null) {
+                        receiveStripedForTask(socket, task, striped, control);
+                    } else {
+                        receiveFileForTask(socket, task, offset, compressed, checksummed, deltaBase, control);
+                    }
+                    return;
+                    
+                } else if (status == TransferTask.TransferStatus.REJECTED || 
+                           status == TransferTask.TransferStatus.CANCELLED) {
+                    // User rejected, send KO response with sequence ID
+                    control.sendReply("KO", sequenceId, null);
+                    logger.log("Transfer rejected by user: " + fileName + " [" + sequenceId + "]");
+                    socket.close();
+                    return;
                 }
                 
                 // Timeout - reject
                 logger.log("Transfer request timed out: " + fileName);
-                outputWriter.println("KO:TIMEOUT");
-                outputWriter.flush();
+                control.sendReply("KO", "TIMEOUT", null);
                 queueManager.updateTaskStatus(task.getId(), TransferTask.TransferStatus.FAILED);
                 socket.close();
                 
             } catch (Exception e) {
                 logger.log("Error handling queued transfer: " + e.getMessage());
+                queueManager.markTaskFailed(task.getId(), e.getMessage());
                 try {
                     socket.close();
                 } catch (IOException ignored) {}
             }
-        }).start();
+        });
+    }
+    
+    /**
+     * Answer OK and wait until the payload may flow. A sender that offered START only sends once
+     * it holds one of its transfer slots, which can take longer than a stalled payload read, so
+     * the payload timeout is armed when its START line arrives rather than at OK.
+     */
+    private void sendApproval(Socket socket, ControlChannel control, TransferRequest request,
+                              Map<String, String> replyOptions) throws IOException {
+        boolean announced = request.getOption(TransferRequest.START) != null;
+        if (announced) {
+            replyOptions.put(TransferRequest.START, "1");
+        }
+        socket.setSoTimeout(announced ? transportConfig.getStartTimeout() : transportConfig.getTransferTimeout());
+        control.sendReply("OK", request.getSequenceId(), replyOptions);
+        if (announced) {
+            ControlChannel.receiveStart(socket);
+            // Payload reads may now stall on the sender's disk or network, not just on a command
+            socket.setSoTimeout(transportConfig.getTransferTimeout());
+        }
+    }
+    
+    /**
+     * Run continuation on a worker once the user approves or rejects the task, or with
+     * PENDING_APPROVAL after 5 minutes. No thread waits meanwhile: the status change
+     * completes the queue manager's future, and the timeout is scheduled.
+     */
+    private void whenDecided(TransferTask task, Socket socket, Consumer<TransferTask.TransferStatus> continuation) {
+        queueManager.decisionFor(task).copy()
+            .completeOnTimeout(TransferTask.TransferStatus.PENDING_APPROVAL, APPROVAL_WAIT_MS, TimeUnit.MILLISECONDS)
+            .thenAccept(status -> execute(socket, () -> continuation.accept(status)));
     }
     
-    private void receiveFileForTask(Socket socket, TransferTask task) {
+    /**
+     * Handle BATCH_REQUEST:sequenceId:label:totalSize:FILES=n and the n manifest entries after it.
+     * The whole batch is one task in the queue and is approved once.
+     */
+    private void handleBatchRequest(Socket socket, String clientIP, ControlChannel.Command message,
+                                    ControlChannel control) {
         try {
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            String fileName = task.getFileName();
-            long fileSize = task.getFileSize();
+            logger.log("=== HANDLING BATCH REQUEST ===");
+            logger.log("From: " + clientIP);
             
-            // Handle duplicate filenames
-            String targetFileName = getUniqueFileName(fileName);
-            File targetFile = new File(fileTransferService.getMailboxPath(), targetFileName);
+            if (!sessionManager.isCompatible(clientIP)) {
+                logger.log("REJECTED: Batch request from " + clientIP + " - No handshake performed");
+                refuse(socket, control, "NO_HANDSHAKE");
+                return;
+            }
+            if (queueManager == null) {
+                logger.log("ERROR: Queue manager not available");
+                refuse(socket, control, "NO_QUEUE_MANAGER");
+                return;
+            }
             
-            // Receive file data
-            FileOutputStream fos = new FileOutputStream(targetFile);
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalReceived = 0;
-            int lastProgress = 0;
+            TransferRequest request = message.getRequest();
+            int count = TransferRequest.intOption(request.getOptions(), TransferRequest.FILES, 0);
+            if (!request.isBatch() || count < 1 || count > BatchTransfer.MAX_FILES) {
+                throw new IllegalArgumentException("Invalid batch file count");
+            }
+            String sequenceId = request.getSequenceId();
             
-            while (totalReceived < fileSize && 
-                   (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalReceived))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalReceived += bytesRead;
-                
-                // Update task progress
-                int progress = (int) ((totalReceived * 100) / fileSize);
-                if (progress != lastProgress) {
-                    queueManager.updateTaskProgress(task.getId(), progress);
-                    lastProgress = progress;
+            BatchTransferTask batch = new BatchTransferTask(control.receiveManifest(count, clientIP),
+                clientIP, TransferTask.TransferDirection.INCOMING);
+            if (batch.getFileSize() != request.getFileSize()) {
+                throw new IllegalArgumentException("Manifest does not add up to the batch size");
+            }
+            logger.log("Batch request received: " + count + " files (" + batch.getFileSize() + " bytes) from "
+                + clientIP + " [" + sequenceId + "]");
+            
+            // A retry of a failed batch replaces its stale task
+            TransferTask previous = queueManager.findTaskByExternalId(clientIP, sequenceId);
+            if (previous != null && previous.getStatus() != TransferTask.TransferStatus.TRANSFERRING) {
+                queueManager.removeTask(previous.getId());
+            }
+            batch.setExternalId(sequenceId);
+            queueManager.addTask(batch);
+            
+            handleIncomingBatch(socket, batch, request, control);
+            
+        } catch (IllegalArgumentException e) {
+            logger.log("ERROR: Invalid batch request from " + clientIP + ": " + e.getMessage());
+            refuse(socket, control, "INVALID_FORMAT");
+        } catch (IOException e) {
+            logger.log("ERROR reading batch request from " + clientIP + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+    
+    private void handleIncomingBatch(Socket socket, BatchTransferTask batch, TransferRequest request,
+                                     ControlChannel control) {
+        String sequenceId = request.getSequenceId();
+        
+        whenDecided(batch, socket, status -> {
+            try {
+                if (status == TransferTask.TransferStatus.APPROVED ||
+                    status == TransferTask.TransferStatus.TRANSFERRING) {
+                    if (!fileTransferService.hasFreeSpaceFor(batch.getFileSize())) {
+                        control.sendReply("KO", sequenceId,
+                            Map.of(TransferRequest.REASON, TransferRequest.REASON_NO_SPACE));
+                        logger.log("Batch refused, not enough disk space [" + sequenceId + "]");
+                        queueManager.markTaskFailed(batch.getId(), "Not enough free disk space");
+                        socket.close();
+                        return;
+                    }
+                    
+                    Map<String, String> replyOptions = new LinkedHashMap<>();
+                    boolean checksummed = PayloadChecksum.CRC32C.equals(request.getOption(TransferRequest.CHECKSUM));
+                    if (checksummed) {
+                        replyOptions.put(TransferRequest.CHECKSUM, PayloadChecksum.CRC32C);
+                    }
+                    
+                    sendApproval(socket, control, request, replyOptions);
+                    logger.log("Batch approved, receiving " + batch.getItems().size() + " files [" + sequenceId + "]");
+                    if (status != TransferTask.TransferStatus.TRANSFERRING) {
+                        queueManager.updateTaskStatus(batch.getId(), TransferTask.TransferStatus.TRANSFERRING);
+                    }
+                    
+                    receiveBatchForTask(socket, batch, checksummed, control);
+                    
+                } else if (status == TransferTask.TransferStatus.REJECTED ||
+                           status == TransferTask.TransferStatus.CANCELLED) {
+                    control.sendReply("KO", sequenceId, null);
+                    logger.log("Batch rejected by user [" + sequenceId + "]");
+                    socket.close();
+                    
+                } else {
+                    logger.log("Batch request timed out [" + sequenceId + "]");
+                    control.sendReply("KO", "TIMEOUT", null);
+                    queueManager.updateTaskStatus(batch.getId(), TransferTask.TransferStatus.FAILED);
+                    socket.close();
                 }
                 
-                // Log progress every 10%
-                if (progress % 10 == 0 && bytesRead > 0) {
-                    logger.log("Receive progress: " + progress + "% (Task: " + task.getId() + ")");
-                }
+            } catch (Exception e) {
+                logger.log("Error handling queued batch: " + e.getMessage());
+                queueManager.markTaskFailed(batch.getId(), e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
             }
+        });
+    }
+    
+    /**
+     * Receive every file of an approved batch, then tell the sender which ones were not saved
+     */
+    private void receiveBatchForTask(Socket socket, BatchTransferTask batch, boolean checksummed,
+                                     ControlChannel control) {
+        try {
+            TransferProgress progress = new TransferProgress(logger, "Receive batch (Task: " + batch.getId() + ")",
+                batch.getFileSize(), percentage -> queueManager.updateTaskProgress(batch.getId(), percentage));
+            progress.setLimits(bandwidthLimiter.forReceiving(batch.getRemoteIP()));
+            List<Integer> failed = fileTransferService.receiveBatch(socket, batch, checksummed, progress);
             
-            fos.flush();
-            fos.close();
+            control.sendReply("OK", batch.getExternalId(), failed.isEmpty()
+                ? null : Map.of(TransferRequest.FAILED, String.valueOf(failed.size())));
+            for (int index : failed) {
+                control.sendIndex(index);
+            }
             socket.close();
             
-            logger.log("File received successfully: " + targetFileName + " saved to mailbox");
+            int total = batch.getItems().size();
+            if (failed.isEmpty()) {
+                logger.log("Batch received successfully: " + total + " files saved to mailbox");
+                queueManager.markTaskCompleted(batch.getId());
+            } else {
+                logger.log("Batch received, " + failed.size() + " of " + total + " files not saved");
+                queueManager.markTaskFailed(batch.getId(), failed.size() + " of " + total + " files failed");
+            }
+            
+        } catch (IOException e) {
+            // Files completed before the failure stay in the mailbox
+            logger.log("ERROR receiving batch: " + e.getMessage());
+            queueManager.markTaskFailed(batch.getId(), e.getMessage());
+            rejectReceived(socket, batch, control, true, null);
+        }
+    }
+    
+    /**
+     * Complete an approved transfer from a mailbox file with the same content hash, if there is one:
+     * link it under the incoming name and answer OK with HAVE so the sender sends nothing
+     * @return true if the transfer was completed this way
+     */
+    private boolean completeFromMailbox(Socket socket, TransferTask task, TransferRequest request,
+                                        ControlChannel control) throws IOException {
+        String contentHash = request.getOption(TransferRequest.HASH);
+        if (contentHash == null) {
+            return false;
+        }
+        File existing = fileTransferService.findInMailbox(contentHash, request.getFileSize());
+        if (existing == null) {
+            return false;
+        }
+        
+        File targetFile;
+        try {
+            targetFile = fileTransferService.linkExisting(existing, task.getFileName(), contentHash);
+        } catch (IOException e) {
+            logger.log("Could not reuse " + existing.getName() + ", receiving the file instead: " + e.getMessage());
+            return false;
+        }
+        
+        control.sendReply("OK", request.getSequenceId(), Map.of(TransferRequest.HAVE, "1"));
+        socket.close();
+        
+        // A part file left by an earlier attempt is no longer needed
+        fileTransferService.discardPartFile(fileTransferService.getPartFile(task.getFileName(), task.getExternalId()));
+        
+        logger.log("Already have " + task.getFileName() + " as " + existing.getName()
+            + ", saved as " + targetFile.getName() + " without receiving it");
+        task.setDeduplicated(true);
+        queueManager.markTaskCompleted(task.getId());
+        return true;
+    }
+    
+    private void receiveFileForTask(Socket socket, TransferTask task, long offset, boolean compressed,
+                                    boolean checksummed, File deltaBase, ControlChannel control) {
+        File partFile = fileTransferService.getPartFile(task.getFileName(), task.getExternalId());
+        try {
+            String fileName = task.getFileName();
+            long fileSize = task.getFileSize();
+            
+            // Receive file data
+            TransferProgress progress = new TransferProgress(logger, "Receive (Task: " + task.getId() + ")", fileSize,
+                percentage -> queueManager.updateTaskProgress(task.getId(), percentage));
+            progress.setLimits(bandwidthLimiter.forReceiving(task.getRemoteIP()));
+            if (offset > 0) {
+                logger.log("Resuming " + fileName + " at byte " + offset + " of " + fileSize);
+                progress.advance(offset);
+            }
+            // Data goes to a part file keyed by the sender's sequence ID until complete
+            if (deltaBase != null) {
+                logger.log("Rebuilding " + fileName + " from delta against " + deltaBase.getName());
+                fileTransferService.receiveDelta(socket, partFile, deltaBase, fileSize, checksummed, progress);
+            } else {
+                fileTransferService.receivePayload(socket, partFile, offset, fileSize, compressed, checksummed, progress);
+            }
+            if (compressed || deltaBase != null) {
+                task.setCompressionRatio(FileTransferService.compressionRatio(fileSize - offset, progress));
+            }
+            
+            File targetFile = fileTransferService.completePartFile(partFile, fileName);
+            if (checksummed) {
+                control.sendReply("OK", task.getExternalId(), null);
+            }
+            socket.close();
+            logger.log("File received successfully: " + targetFile.getName() + " saved to mailbox");
             queueManager.markTaskCompleted(task.getId());
             
+        } catch (ChecksumMismatchException e) {
+            // Corrupt data must not be resumed from either
+            logger.log("ERROR: " + e.getMessage() + ", discarding " + partFile.getName());
+            queueManager.markTaskFailed(task.getId(), "Checksum mismatch: corrupt file discarded");
+            rejectReceived(socket, task, control, checksummed, TransferRequest.REASON_CHECKSUM);
+            try {
+                fileTransferService.discardPartFile(partFile);
+            } catch (IOException ignored) {}
+            
         } catch (IOException e) {
+            // The part file is kept so a retry of this sequence ID can resume
             logger.log("ERROR receiving file: " + e.getMessage());
             queueManager.markTaskFailed(task.getId(), e.getMessage());
+            rejectReceived(socket, task, control, checksummed, null);
         }
     }
     
-    private String getUniqueFileName(String fileName) {
-        File file = new File(fileTransferService.getMailboxPath(), fileName);
-        if (!file.exists()) {
-            return fileName;
+    /**
+     * Tell a sender waiting for confirmation that the file was not kept, then drop the connection
+     */
+    private void rejectReceived(Socket socket, TransferTask task, ControlChannel control,
+                                boolean confirmationExpected, String reason) {
+        if (confirmationExpected) {
+            try {
+                control.sendReply("KO", task.getExternalId(),
+                    reason != null ? Map.of(TransferRequest.REASON, reason) : null);
+            } catch (IOException ignored) {
+                // The connection is what failed; the sender will not get a verdict either way
+            }
         }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+    
+    /**
+     * Unregister a striped receive that will not complete and delete its part file
+     */
+    private void dropStripedReceive(TransferTask task, StripedReceive receive) {
+        stripedReceives.remove(stripeKey(task.getRemoteIP(), task.getExternalId()));
+        try {
+            receive.close();
+            fileTransferService.discardPartFile(receive.getTargetFile());
+            fileTransferService.clearPreallocated(receive.getTargetFile());
+        } catch (IOException ignored) {}
+    }
+    
+    private String stripeKey(String clientIP, String sequenceId) {
+        return clientIP + "|" + sequenceId;
+    }
+    
+    /**
+     * Preallocate the target file and register the transfer so stripe connections can find it
+     */
+    private StripedReceive openStripedReceive(TransferTask task, int stripes, boolean compressed,
+                                              boolean checksummed) throws IOException {
+        File targetFile = fileTransferService.getPartFile(task.getFileName(), task.getExternalId());
+        TransferProgress progress = new TransferProgress(logger, "Receive (Task: " + task.getId() + ")", task.getFileSize(),
+            percentage -> queueManager.updateTaskProgress(task.getId(), percentage));
+        progress.setLimits(bandwidthLimiter.forReceiving(task.getRemoteIP()));
         
-        // File exists, add number suffix
-        String nameWithoutExt;
-        String extension;
-        int dotIndex = fileName.lastIndexOf('.');
-        
-        if (dotIndex > 0) {
-            nameWithoutExt = fileName.substring(0, dotIndex);
-            extension = fileName.substring(dotIndex);
-        } else {
-            nameWithoutExt = fileName;
-            extension = "";
+        fileTransferService.markPreallocated(targetFile);
+        StripedReceive receive = new StripedReceive(targetFile, task.getFileSize(),
+            new StripePlan(task.getFileSize(), stripes), compressed, checksummed, progress);
+        stripedReceives.put(stripeKey(task.getRemoteIP(), task.getExternalId()), receive);
+        return receive;
+    }
+    
+    /**
+     * Receive stripe 0 on the approved connection, then wait for the other stripes.
+     * The task only completes once every stripe has been written.
+     */
+    private void receiveStripedForTask(Socket socket, TransferTask task, StripedReceive receive,
+                                       ControlChannel control) {
+        String key = stripeKey(task.getRemoteIP(), task.getExternalId());
+        try {
+            logger.log("Receiving " + task.getFileName() + " in " + receive.getPlan().getCount() + " stripes (Task: " + task.getId() + ")");
+            
+            receive.claim(0);
+            receiveStripe(socket, receive, 0);
+            receive.awaitCompletion(transportConfig.getStripeTimeout());
+            stripedReceives.remove(key);
+            receive.close();
+            fileTransferService.clearPreallocated(receive.getTargetFile());
+            if (receive.isCompressed()) {
+                task.setCompressionRatio(FileTransferService.compressionRatio(task.getFileSize(), receive.getProgress()));
+            }
+            
+            File targetFile = fileTransferService.completePartFile(receive.getTargetFile(), task.getFileName());
+            if (receive.isChecksummed()) {
+                control.sendReply("OK", task.getExternalId(), null);
+            }
+            logger.log("File received successfully: " + targetFile.getName() + " saved to mailbox");
+            queueManager.markTaskCompleted(task.getId());
+            
+        } catch (IOException e) {
+            // A preallocated part file says nothing about which ranges arrived, so it cannot be resumed
+            boolean corrupt = e instanceof ChecksumMismatchException;
+            logger.log("ERROR receiving striped file: " + e.getMessage());
+            queueManager.markTaskFailed(task.getId(), corrupt ? "Checksum mismatch: corrupt file discarded" : e.getMessage());
+            rejectReceived(socket, task, control, receive.isChecksummed(),
+                corrupt ? TransferRequest.REASON_CHECKSUM : null);
+            dropStripedReceive(task, receive);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
         }
+    }
+    
+    /**
+     * Handle an extra stripe connection: STRIPE:sequenceId:index
+     */
+    private void handleStripe(Socket socket, String clientIP, String message, ControlChannel control) {
+        String[] parts = message.split(":");
+        StripedReceive receive = null;
+        int index = -1;
         
-        int counter = 1;
-        String newFileName;
-        do {
-            newFileName = nameWithoutExt + "_" + counter + extension;
-            file = new File(fileTransferService.getMailboxPath(), newFileName);
-            counter++;
-        } while (file.exists());
+        if (parts.length >= 3) {
+            receive = stripedReceives.get(stripeKey(clientIP, parts[1]));
+            try {
+                index = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException ignored) {}
+        }
         
-        logger.log("File renamed to avoid duplicate: " + newFileName);
-        return newFileName;
+        try {
+            if (receive == null || !receive.claim(index)) {
+                logger.log("REJECTED: Unknown stripe from " + clientIP + ": " + message);
+                control.sendLine("KO:" + (parts.length >= 2 ? parts[1] : "INVALID_FORMAT"));
+                return;
+            }
+            
+            socket.setSoTimeout(transportConfig.getTransferTimeout());
+            control.sendLine("OK:" + parts[1] + ":" + index);
+            receiveStripe(socket, receive, index);
+            
+        } catch (IOException e) {
+            logger.log("ERROR receiving stripe " + index + " from " + clientIP + ": " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+    
+    /**
+     * Receive one stripe from its connection, giving up when the sender stalls for the socket's timeout
+     */
+    private void receiveStripe(Socket socket, StripedReceive receive, int index) throws IOException {
+        try (TimedChannel source = new TimedChannel(socket.getChannel(), socket.getSoTimeout())) {
+            receive.receiveStripe(source, index);
+        }
     }
     
     public void stop() {
         running = false;
+        for (ListenerLoop loop : loops) {
+            loop.close();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
             }
         } catch (IOException e) {
             logger.log("Error closing server socket: " + e.getMessage());
@@ -0,0 +1,173 @@
+package com.filetransfer.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * TCP connect sweep of one port across many hosts, on the calling thread.
+ *
+ * Connects are non-blocking and watched by one selector: up to maxInFlight are pending at
+ * a time, and a host that neither accepts nor refuses within the timeout counts as closed.
+ * An accepted connection is closed at once, like a connect scan. Each connect pays one token
+ * to the probe rate limit, which several sweeps may share.
+ *
+ * cancel() stops a running sweep from any thread: pending connects are dropped and run
+ * returns without probing the remaining targets.
+ */
+final class PortSweep {
+
+    private static final int FILL_BATCH = 16; // Connects between selector passes, so a slow (rate-limited) fill does not hold them up
+
+    private final int port;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private final TokenBucket probeRate; // One token per connect
+    private volatile Selector selector;
+    private volatile boolean cancelled;
+
+    PortSweep(int port, int maxInFlight, long timeoutMillis, TokenBucket probeRate) {
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+        this.probeRate = probeRate;
+    }
+
+    /**
+     * Probe every target, calling onOpen (on this thread) for each host with the port open
+     * @return number of hosts probed
+     */
+    int run(Iterator<InetAddress> targets, Consumer<InetAddress> onOpen) throws IOException {
+        int probed = 0;
+        try (Selector selector = Selector.open()) {
+            this.selector = selector;
+            while (!cancelled && (targets.hasNext() || !selector.keys().isEmpty())) {
+                // Keep the window full
+                for (int batch = 0; batch < FILL_BATCH && !cancelled && targets.hasNext()
+                        && selector.keys().size() < maxInFlight; batch++) {
+                    probeRate.acquire(1);
+                    InetAddress target = targets.next();
+                    probed++;
+                    connect(selector, target, onOpen);
+                }
+                if (selector.keys().isEmpty()) {
+                    continue;
+                }
+
+                // Only wait for the next deadline once nothing more can be started
+                if (!cancelled && targets.hasNext() && selector.keys().size() < maxInFlight) {
+                    selector.selectNow();
+                } else {
+                    selector.select(nextDeadline(selector));
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    finish(key, onOpen);
+                }
+                expire(selector);
+            }
+            // Closing the selector leaves the channels of a cancelled sweep open
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+        }
+        return probed;
+    }
+
+    void cancel() {
+        cancelled = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void connect(Selector selector, InetAddress target, Consumer<InetAddress> onOpen) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(target, port))) {
+                channel.close();
+                onOpen.accept(target);
+                return;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT,
+                new Probe(target, System.currentTimeMillis() + timeoutMillis));
+        } catch (IOException e) {
+            // Unreachable right away (no route, refused): closed
+            closeQuietly(channel);
+        }
+    }
+
+    private void finish(SelectionKey key, Consumer<InetAddress> onOpen) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Probe probe = (Probe) key.attachment();
+        boolean open;
+        try {
+            open = channel.finishConnect();
+        } catch (IOException e) {
+            open = false; // Refused or unreachable
+        }
+        key.cancel();
+        closeQuietly(channel);
+        if (open) {
+            onOpen.accept(probe.target);
+        }
+    }
+
+    /**
+     * Milliseconds until the earliest pending connect times out (at least 1)
+     */
+    private long nextDeadline(Selector selector) {
+        long earliest = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                earliest = Math.min(earliest, ((Probe) key.attachment()).deadline);
+            }
+        }
+        return earliest == Long.MAX_VALUE ? 1 : Math.max(1, earliest - System.currentTimeMillis());
+    }
+
+    private void expire(Selector selector) throws IOException {
+        long now = System.currentTimeMillis();
+        boolean cancelled = false;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && ((Probe) key.attachment()).deadline <= now) {
+                key.cancel();
+                closeQuietly(key.channel());
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            selector.selectNow(); // Drop cancelled keys so the window frees up
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** A pending connect */
+    private static final class Probe {
+        final InetAddress target;
+        final long deadline;
+
+        Probe(InetAddress target, long deadline) {
+            this.target = target;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Logger;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery without scanning: every instance sends a small beacon every few seconds to a
+ * LAN multicast group, and to the broadcast address of each interface for networks that
+ * drop multicast, and keeps a table of the peers whose beacons it hears.
+ *
+ * A beacon is one text line:
+ *   PRESENCE:version:HELLO|BYE:instance:ip:port:hostname:capabilities
+ * The ip field is informational; a peer is known by the address its beacons come from.
+ * Fields a later version appends are ignored. Hearing a new peer triggers a beacon at once, so
+ * a newcomer learns of everyone within moments. A peer is dropped when it says BYE (on exit)
+ * or after MISSED_BEACONS intervals without a beacon.
+ */
+public class PresenceBeacon {
+
+    public static final int VERSION = 1;
+    /** What this version speaks, beyond the text handshake and requests */
+    public static final List<String> CAPABILITIES =
+        List.of("BINARY", "MUX", "STRIPE", "BATCH", "COMPRESS", "DELTA", "DEDUP");
+    private static final String PREFIX = "PRESENCE:";
+    private static final String HELLO = "HELLO";
+    private static final String BYE = "BYE";
+    private static final int TCP_PORT = 8080;
+    private static final int MAX_BEACON = 512;
+    private static final int MISSED_BEACONS = 3;
+
+    /** Peers appearing and going away, called on the beacon threads */
+    public interface PresenceListener {
+        /** A new peer, or one whose host name, port or capabilities changed */
+        void onPeerUp(Peer peer);
+
+        void onPeerDown(Peer peer);
+
+        /** The local interfaces or their addresses changed (checked every interval) */
+        default void onNetworkChanged() {
+        }
+    }
+
+    /** A peer as its last beacon described it */
+    public static final class Peer {
+        private final String instance;
+        private final String ipAddress;
+        private final int port;
+        private final String hostname;
+        private final int version;
+        private final Set<String> capabilities;
+        private volatile long lastSeen;
+
+        Peer(String instance, String ipAddress, int port, String hostname, int version, Set<String> capabilities) {
+            this.instance = instance;
+            this.ipAddress = ipAddress;
+            this.port = port;
+            this.hostname = hostname;
+            this.version = version;
+            this.capabilities = capabilities;
+            this.lastSeen = System.currentTimeMillis();
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public Set<String> getCapabilities() {
+            return capabilities;
+        }
+
+        public boolean hasCapability(String capability) {
+            return capabilities.contains(capability);
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        private boolean sameAs(Peer other) {
+            return instance.equals(other.instance) && port == other.port && hostname.equals(other.hostname)
+                && version == other.version && capabilities.equals(other.capabilities);
+        }
+
+        @Override
+        public String toString() {
+            return ipAddress + " (" + hostname + ", v" + version + ")";
+        }
+    }
+
+    private final Logger logger;
+    private final TransportConfig transportConfig;
+    private final String instance = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>(); // By IP
+    private final List<PresenceListener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<String> joined = ConcurrentHashMap.newKeySet();   // Interfaces in the group
+    private InetAddress group;
+    private String hostname;
+    private MulticastSocket receiveSocket;
+    private MulticastSocket sendSocket;
+    private ScheduledExecutorService timer;
+    private volatile boolean running;
+    private Set<String> localAddresses;                                   // As of the last tick
+
+    public PresenceBeacon(Logger logger, TransportConfig transportConfig) {
+        this.logger = logger;
+        this.transportConfig = transportConfig;
+    }
+
+    public void addListener(PresenceListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Join the group and start announcing; failures are logged, and scanning still works
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        int port = transportConfig.getBeaconPort();
+        try {
+            group = InetAddress.getByName(transportConfig.getBeaconGroup());
+            if (!group.isMulticastAddress()) {
+                throw new IOException(group.getHostAddress() + " is not a multicast address");
+            }
+            hostname = localHostname();
+            receiveSocket = new MulticastSocket(port); // SO_REUSEADDR: several instances per host can listen
+            sendSocket = new MulticastSocket();
+            sendSocket.setTimeToLive(1);               // Stay on the LAN
+            sendSocket.setBroadcast(true);
+        } catch (IOException e) {
+            logger.log("WARNING: Presence beacon disabled: " + e.getMessage());
+            closeSockets();
+            return;
+        }
+        running = true;
+        joinGroup();
+        Threads.start("presence-receive", true, this::receiveLoop);
+        long interval = transportConfig.getBeaconInterval();
+        timer = Executors.newSingleThreadScheduledExecutor(Threads.factory("presence-beacon-", true));
+        timer.scheduleWithFixedDelay(this::tick, 0, interval, TimeUnit.MILLISECONDS);
+        logger.log("Announcing presence on " + group.getHostAddress() + ":" + port + " every " + interval + " ms");
+    }
+
+    /**
+     * Say goodbye, so peers drop us at once, and stop
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        timer.shutdownNow();
+        send(BYE);
+        closeSockets();
+        peers.clear();
+    }
+
+    /**
+     * Live peers, as of their last beacon
+     */
+    public List<Peer> getPeers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /**
+     * The live peer at this address, or null
+     */
+    public Peer getPeer(String ipAddress) {
+        return peers.get(ipAddress);
+    }
+
+    private void tick() {
+        try {
+            checkNetwork();
+            joinGroup();  // Interfaces come and go (Wi-Fi, VPN)
+            send(HELLO);
+            expire();
+        } catch (RuntimeException e) {
+            logger.log("ERROR in presence beacon: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Beacon right away for a peer just heard of, so a newcomer sees us without waiting an interval
+     */
+    private void answer() {
+        try {
+            timer.execute(() -> send(HELLO));
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    private void send(String type) {
+        for (NetworkInterface ni : beaconInterfaces()) {
+            for (InterfaceAddress address : ni.getInterfaceAddresses()) {
+                if (!(address.getAddress() instanceof Inet4Address)) {
+                    continue;
+                }
+                byte[] beacon = encode(type, address.getAddress().getHostAddress());
+                try {
+                    sendSocket.setNetworkInterface(ni);
+                    sendSocket.send(new DatagramPacket(beacon, beacon.length, group, transportConfig.getBeaconPort()));
+                    if (address.getBroadcast() != null) {
+                        sendSocket.send(new DatagramPacket(beacon, beacon.length, address.getBroadcast(),
+                            transportConfig.getBeaconPort()));
+                    }
+                } catch (IOException e) {
+                    // Interface just went down, or does not route multicast; the next tick retries
+                }
+            }
+        }
+    }
+
+    private byte[] encode(String type, String ipAddress) {
+        String line = PREFIX + VERSION + ":" + type + ":" + instance + ":" + ipAddress + ":" + TCP_PORT + ":"
+            + hostname + ":" + String.join(",", CAPABILITIES);
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_BEACON];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                receiveSocket.receive(packet);
+            } catch (IOException e) {
+                if (running) {
+                    logger.log("ERROR receiving presence beacons: " + e.getMessage());
+                }
+                return;
+            }
+            handle(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8),
+                packet.getAddress());
+        }
+    }
+
+    /**
+     * Update the peer table from one beacon; anything malformed is ignored
+     */
+    private void handle(String line, InetAddress source) {
+        if (!line.startsWith(PREFIX)) {
+            return;
+        }
+        String[] fields = line.substring(PREFIX.length()).split(":");
+        if (fields.length < 7 || fields[2].equals(instance)) {
+            return; // Not a beacon, or our own
+        }
+        Peer peer;
+        try {
+            // The peer is recorded under the packet's source: any host can claim any address in the
+            // beacon, and resolving that field could start a DNS lookup on the receive thread
+            String ipAddress = source.getHostAddress();
+            Set<String> capabilities = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(fields[6].split(","))));
+            peer = new Peer(fields[2], ipAddress, Integer.parseInt(fields[4]), fields[5], Integer.parseInt(fields[0]),
+                capabilities);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (BYE.equals(fields[1])) {
+            Peer gone = peers.get(peer.ipAddress);
+            if (gone != null && gone.instance.equals(peer.instance) && peers.remove(peer.ipAddress, gone)) {
+                logger.log("Peer left: " + gone);
+                listeners.forEach(listener -> listener.onPeerDown(gone));
+            }
+            return;
+        }
+        Peer previous = peers.put(peer.ipAddress, peer);
+        if (previous == null || !previous.sameAs(peer)) {
+            if (previous == null) {
+                logger.log("Peer announced: " + peer);
+                answer();
+            }
+            listeners.forEach(listener -> listener.onPeerUp(peer));
+        }
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - MISSED_BEACONS * transportConfig.getBeaconInterval();
+        for (Peer peer : peers.values()) {
+            if (peer.lastSeen < cutoff && peers.remove(peer.ipAddress, peer)) {
+                logger.log("Peer silent, dropped: " + peer);
+                listeners.forEach(listener -> listener.onPeerDown(peer));
+            }
+        }
+    }
+
+    private void checkNetwork() {
+        Set<String> addresses = new LinkedHashSet<>();
+        try {
+            for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (ni.isUp() && !ni.isLoopback()) {
+                    for (InterfaceAddress address : ni.getInterfaceAddresses()) {
+                        addresses.add(ni.getName() + "/" + address.getAddress().getHostAddress()
+                            + "/" + address.getNetworkPrefixLength());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            return;
+        }
+        if (localAddresses != null && !localAddresses.equals(addresses)) {
+            logger.log("Network interfaces changed");
+            listeners.forEach(PresenceListener::onNetworkChanged);
+        }
+        localAddresses = addresses;
+    }
+
+    private void joinGroup() {
+        InetSocketAddress groupAddress = new InetSocketAddress(group, transportConfig.getBeaconPort());
+        for (NetworkInterface ni : beaconInterfaces()) {
+            if (joined.contains(ni.getName())) {
+                continue;
+            }
+            try {
+                receiveSocket.joinGroup(groupAddress, ni);
+                joined.add(ni.getName());
+            } catch (IOException e) {
+                logger.log("Could not join " + group.getHostAddress() + " on " + ni.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Interfaces that are up, not loopback, support multicast and have an IPv4 address
+     */
+    private static List<NetworkInterface> beaconInterfaces() {
+        List<NetworkInterface> result = new ArrayList<>();
+        try {
+            for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (ni.isUp() && !ni.isLoopback() && ni.supportsMulticast()
+                        && ni.inetAddresses().anyMatch(address -> address instanceof Inet4Address)) {
+                    result.add(ni);
+                }
+            }
+        } catch (SocketException e) {
+            // No interfaces this time
+        }
+        return result;
+    }
+
+    /**
+     * Host name to announce, without the separator of the beacon fields
+     */
+    private static String localHostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName().replace(':', '-');
+        } catch (IOException e) {
+            return "Unknown";
+        }
+    }
+
+    private void closeSockets() {
+        if (receiveSocket != null) {
+            receiveSocket.close();
+        }
+        if (sendSocket != null) {
+            sendSocket.close();
+        }
+        joined.clear();
+    }
+}
@@ -0,0 +1,33 @@
+package com.filetransfer.service;
+
+/**
+ * Splits a file into contiguous byte ranges for a striped transfer.
+ * Sender and receiver compute the same plan from the file size and the negotiated stripe count.
+ */
+public class StripePlan {
+    
+    private static final long ALIGNMENT = 1024L * 1024L; // Stripe boundaries on 1 MB
+    
+    private final long fileSize;
+    private final long stripeLength;
+    private final int count;
+    
+    public StripePlan(long fileSize, int stripes) {
+        this.fileSize = fileSize;
+        long perStripe = (fileSize + stripes - 1) / Math.max(1, stripes);
+        this.stripeLength = Math.max(ALIGNMENT, ((perStripe + ALIGNMENT - 1) / ALIGNMENT) * ALIGNMENT);
+        this.count = (int) Math.max(1, (fileSize + stripeLength - 1) / stripeLength);
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    public long getOffset(int index) {
+        return Math.min(fileSize, index * stripeLength);
+    }
+    
+    public long getLength(int index) {
+        return Math.min(fileSize, (index + 1) * stripeLength) - getOffset(index);
+    }
+}
@@ -0,0 +1,143 @@
+package com.filetransfer.service;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+/**
+ * Receiver-side state of one striped transfer: every stripe connection writes its
+ * range at its offset in the shared, preallocated target file.
+ */
+public class StripedReceive implements Closeable {
+    
+    private final File targetFile;
+    private final RandomAccessFile file;
+    private final FileChannel target;
+    private final StripePlan plan;
+    private final TransferProgress progress;
+    private final boolean compressed;
+    private final boolean checksummed;
+    private final boolean[] claimed;
+    private final CountDownLatch remaining;
+    private int claimedCount;
+    private volatile IOException failure;
+    
+    /**
+     * Create the target file preallocated to its final size
+     */
+    public StripedReceive(File targetFile, long fileSize, StripePlan plan, boolean compressed,
+                          boolean checksummed, TransferProgress progress) throws IOException {
+        this.targetFile = targetFile;
+        this.file = new RandomAccessFile(targetFile, "rw");
+        this.file.setLength(fileSize);
+        this.target = file.getChannel();
+        this.plan = plan;
+        this.progress = progress;
+        this.compressed = compressed;
+        this.checksummed = checksummed;
+        this.claimed = new boolean[plan.getCount()];
+        this.remaining = new CountDownLatch(plan.getCount());
+    }
+    
+    /**
+     * Reserve a stripe for an incoming connection
+     * @return false if the index is invalid or already taken
+     */
+    public synchronized boolean claim(int index) {
+        if (index < 0 || index >= claimed.length || claimed[index]) {
+            return false;
+        }
+        claimed[index] = true;
+        claimedCount++;
+        return true;
+    }
+    
+    /**
+     * Receive a claimed stripe from its connection, then check its trailer if checksummed
+     */
+    public void receiveStripe(ReadableByteChannel source, int index) throws IOException {
+        try {
+            Checksum checksum = PayloadChecksum.create(checksummed);
+            DataInputStream in = new DataInputStream(Channels.newInputStream(source));
+            if (compressed) {
+                in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(source)));
+                BlockCompression.receive(in, target, plan.getOffset(index), plan.getLength(index), progress, checksum);
+            } else {
+                ChannelTransfer.receiveDirect(source, target, plan.getOffset(index), plan.getLength(index),
+                    progress, checksum);
+            }
+            if (checksum != null) {
+                PayloadChecksum.verifyTrailer(in, checksum, targetFile.getName() + " stripe " + index);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            remaining.countDown();
+        }
+    }
+    
+    /**
+     * Wait until every stripe has been written
+     * @param connectTimeoutMs how long to wait for all stripe connections to arrive
+     */
+    public void awaitCompletion(long connectTimeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + connectTimeoutMs;
+        try {
+            while (!remaining.await(1, TimeUnit.SECONDS)) {
+                if (failure != null) {
+                    break;
+                }
+                synchronized (this) {
+                    if (claimedCount < claimed.length && System.currentTimeMillis() > deadline) {
+                        throw new IOException("Only " + claimedCount + " of " + claimed.length + " stripe connections arrived");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for stripes");
+        }
+        
+        if (failure instanceof ChecksumMismatchException) {
+            throw new ChecksumMismatchException(failure.getMessage());
+        }
+        if (failure != null) {
+            throw new IOException("Stripe failed: " + failure.getMessage());
+        }
+    }
+    
+    public TransferProgress getProgress() {
+        return progress;
+    }
+    
+    public boolean isCompressed() {
+        return compressed;
+    }
+    
+    public boolean isChecksummed() {
+        return checksummed;
+    }
+    
+    public StripePlan getPlan() {
+        return plan;
+    }
+    
+    public File getTargetFile() {
+        return targetFile;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
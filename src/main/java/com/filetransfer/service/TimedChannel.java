@@ -0,0 +1,83 @@
+package com.filetransfer.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads of a socket channel that give up after the socket's SO_TIMEOUT, which a blocking
+ * SocketChannel.read ignores. The channel is switched to non-blocking mode and waits in a
+ * selector; closing this wrapper puts it back in blocking mode but leaves it open, so the
+ * socket's streams can be used again afterwards (trailers, replies).
+ */
+final class TimedChannel implements ReadableByteChannel {
+
+    // A close of the channel by another thread does not wake the selector, so it is rechecked this often
+    private static final long POLL_INTERVAL_MS = 1000;
+
+    private final SocketChannel channel;
+    private final long timeoutMs;
+    private final Selector selector;
+
+    /**
+     * @param timeoutMs 0 waits forever, like SO_TIMEOUT
+     */
+    TimedChannel(SocketChannel channel, int timeoutMs) throws IOException {
+        this.channel = channel;
+        this.timeoutMs = timeoutMs;
+        selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            int read = channel.read(buffer);
+            if (read != 0 || !buffer.hasRemaining()) {
+                return read;
+            }
+            long wait = POLL_INTERVAL_MS;
+            if (timeoutMs > 0) {
+                wait = Math.min(wait, deadline - System.currentTimeMillis());
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("No data for " + timeoutMs + " ms");
+                }
+            }
+            selector.select(wait);
+            selector.selectedKeys().clear();
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while reading");
+            }
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return selector.isOpen() && channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Closing the selector deregisters the channel, which blocking mode requires
+        selector.close();
+        if (channel.isOpen()) {
+            channel.configureBlocking(true);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.filetransfer.service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte rate limit shared by every transfer it applies to. The network scan uses one as a
+ * probe rate limit, paying one "byte" per connect.
+ *
+ * A token bucket kept as the time at which the bytes paid so far will have been earned:
+ * a payment moves that time forward and the caller waits until it is no more than one
+ * burst ahead of the clock. Callers are served in the order they pay, so transfers that
+ * pay in equal slices (see getQuantum) get equal shares.
+ *
+ * Waits use a lock rather than a monitor so a waiting virtual thread does not hold its carrier.
+ */
+public class TokenBucket {
+
+    private static final long BURST_NANOS = 50_000_000L;
+    private static final long MIN_QUANTUM = 16 * 1024;
+    private static final long MAX_QUANTUM = 4L * 1024L * 1024L;
+
+    private volatile long rate; // Bytes per second, 0 = unlimited
+    private long paidUntil;     // nanoTime at which every byte paid so far is earned
+    private long generation;    // Bumped by setRate to release waiters
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition rateChanged = lock.newCondition();
+
+    public TokenBucket(long bytesPerSecond) {
+        this.rate = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Change the rate; transfers waiting on the old one continue at once under the new one
+     */
+    public void setRate(long bytesPerSecond) {
+        lock.lock();
+        try {
+            rate = Math.max(0, bytesPerSecond);
+            paidUntil = System.nanoTime();
+            generation++;
+            rateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isUnlimited() {
+        return rate == 0;
+    }
+
+    /**
+     * Bytes a transfer should pay at a time: about one burst's worth
+     */
+    public long getQuantum() {
+        long current = rate;
+        if (current == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, current / (1_000_000_000L / BURST_NANOS)));
+    }
+
+    /**
+     * Pay for bytes, waiting until the rate allows them
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        lock.lock();
+        try {
+            long current = rate;
+            if (current == 0 || bytes <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long cost = (long) (bytes * 1_000_000_000.0 / current);
+            paidUntil = Math.max(paidUntil, now) + cost;
+            long wakeAt = paidUntil - BURST_NANOS;
+
+            long startGeneration = generation;
+            while (generation == startGeneration) {
+                long delay = wakeAt - System.nanoTime();
+                if (delay <= 0) {
+                    return;
+                }
+                rateChanged.awaitNanos(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
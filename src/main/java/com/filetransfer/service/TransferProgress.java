@@ -0,0 +1,144 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Logger;
+
+import java.io.InterruptedIOException;
+import java.util.function.IntConsumer;
+
+/**
+ * Counts the bytes moved for one transfer and reports whole-percent changes.
+ * Safe to share between the connections of a striped transfer.
+ *
+ * Also paces the transfer against its rate limits: the copy loops report every byte that
+ * crosses the socket (pace, or recordWireBytes for framed payloads), and the transfer pays
+ * each limit one quantum at a time, so concurrent transfers share it evenly.
+ */
+public class TransferProgress {
+
+    private final Logger logger;
+    private final String label;
+    private final long totalBytes;
+    private final IntConsumer listener;
+    private long transferred;
+    private long wireBytes; // Bytes actually on the wire, when they differ from the file bytes (compression)
+    private int lastProgress;
+    private TokenBucket[] limits = new TokenBucket[0];
+    private long[] unpaid = new long[0]; // Bytes moved but not yet paid, per limit
+
+    public TransferProgress(Logger logger, String label, long totalBytes, IntConsumer listener) {
+        this.logger = logger;
+        this.label = label;
+        this.totalBytes = totalBytes;
+        this.listener = listener;
+    }
+
+    /**
+     * Record bytes that have just been moved
+     */
+    public synchronized void advance(long bytes) {
+        transferred += bytes;
+
+        int progress = percent(transferred, totalBytes);
+        if (progress != lastProgress) {
+            if (listener != null) {
+                listener.accept(progress);
+            }
+
+            // Log progress every 10%
+            if (progress / 10 != lastProgress / 10) {
+                logger.log(label + " progress: " + progress + "%");
+            }
+            lastProgress = progress;
+        }
+    }
+
+    /**
+     * Record bytes written to or read from the socket for the file bytes, and pace them
+     */
+    public void recordWireBytes(long bytes) throws InterruptedIOException {
+        synchronized (this) {
+            wireBytes += bytes;
+        }
+        pace(bytes);
+    }
+
+    /**
+     * Rate limits this transfer must respect (set before the first byte is moved)
+     */
+    public synchronized void setLimits(TokenBucket... limits) {
+        this.limits = limits;
+        this.unpaid = new long[limits.length];
+    }
+
+    /**
+     * Account for bytes that have just crossed the socket, waiting while a limit is exceeded
+     */
+    public void pace(long bytes) throws InterruptedIOException {
+        TokenBucket[] current;
+        long[] due = null;
+        synchronized (this) {
+            current = limits;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].isUnlimited()) {
+                    unpaid[i] = 0;
+                    continue;
+                }
+                unpaid[i] += bytes;
+                long quantum = current[i].getQuantum();
+                if (unpaid[i] >= quantum) {
+                    if (due == null) {
+                        due = new long[current.length];
+                    }
+                    due[i] = unpaid[i];
+                    unpaid[i] = 0;
+                }
+            }
+        }
+        if (due != null) {
+            for (int i = 0; i < current.length; i++) {
+                current[i].acquire(due[i]);
+            }
+        }
+    }
+
+    /**
+     * Largest chunk a copy loop should move at once: a chunk is paid after it is moved,
+     * so under a limit it must not exceed one quantum or it would go out as a burst
+     */
+    public long limitChunk(long preferred) {
+        long chunk = preferred;
+        TokenBucket[] current;
+        synchronized (this) {
+            current = limits;
+        }
+        for (TokenBucket limit : current) {
+            chunk = Math.min(chunk, limit.getQuantum());
+        }
+        return chunk;
+    }
+
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * Whole percentage of done in total, without overflowing for any file size
+     */
+    public static int percent(long done, long total) {
+        if (total <= 0) {
+            return 100;
+        }
+        if (done <= Long.MAX_VALUE / 100) {
+            return (int) ((done * 100) / total);
+        }
+        return (int) (done / (total / 100));
+    }
+
+    public synchronized long getTransferred() {
+        return transferred;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+}
@@ -5,26 +5,45 @@ import com.filetransfer.model.TransferTask.TransferStatus;
 import com.filetransfer.model.TransferTask.TransferDirection;
 import com.filetransfer.util.Logger;
 import com.filetransfer.util.QueuePersistence;
+import com.filetransfer.util.Threads;
 
+import java.io.InterruptedIOException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
+/**
+ * Queue of incoming and outgoing transfer tasks.
+ *
+ * An outgoing task goes APPROVED -> AWAITING_REMOTE_APPROVAL -> TRANSFERRING: its request is
+ * sent at once, and it only takes one of the MAX_CONCURRENT_TRANSFERS slots once the receiver
+ * has said OK and bytes are about to move, so slow approvals do not hold up other transfers.
+ * The sender then says START, and only from there does the receiver time out payload reads.
+ */
 public class TransferQueueManager {
     
     private static final int MAX_CONCURRENT_TRANSFERS = 3;
+    private static final int MAX_OUTSTANDING_REQUESTS = 16; // Outgoing tasks between request and completion
     
     private final Logger logger;
     private final QueuePersistence queuePersistence;
     private final Map<String, TransferTask> tasks; // taskId -> task
     private final ExecutorService transferExecutor;
+    private final Set<String> submittedTransfers; // taskIds already handed to the executor
+    private final Map<String, CompletableFuture<TransferStatus>> decisions; // taskId -> user's decision, while awaited
+    private final Semaphore sendSlots; // Outgoing transfers moving bytes
     private final List<QueueUpdateListener> listeners;
     
     public TransferQueueManager(Logger logger) {
         this.logger = logger;
         this.queuePersistence = new QueuePersistence(logger);
         this.tasks = new ConcurrentHashMap<>();
-        this.transferExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_TRANSFERS);
+        // Outgoing tasks from request to completion, on platform or virtual threads; only
+        // MAX_CONCURRENT_TRANSFERS of them move bytes at once (sendSlots)
+        this.transferExecutor = Executors.newFixedThreadPool(MAX_OUTSTANDING_REQUESTS, Threads.factory("transfer-", false));
+        this.sendSlots = new Semaphore(MAX_CONCURRENT_TRANSFERS, true);
+        this.submittedTransfers = ConcurrentHashMap.newKeySet();
+        this.decisions = new ConcurrentHashMap<>();
         this.listeners = new CopyOnWriteArrayList<>();
     }
     
@@ -77,11 +96,14 @@ public class TransferQueueManager {
         if (task != null) {
             task.setStatus(status);
             logger.log("Task status updated: " + task.toString());
+            completeDecision(task);
             notifyTaskChanged(task);
             notifyListeners();
             
-            // If approved, try to start transfer
-            if (status == TransferStatus.APPROVED) {
+            // If approved, try to start transfer; outgoing requests go out at once, without a slot
+            if (status == TransferStatus.APPROVED && task.getDirection() == TransferDirection.OUTGOING) {
+                updateTaskStatus(taskId, TransferStatus.AWAITING_REMOTE_APPROVAL);
+            } else if (status == TransferStatus.APPROVED) {
                 tryStartNextTransfer();
             }
         }
@@ -136,6 +158,12 @@ public class TransferQueueManager {
         if (task != null) {
             logger.log("Removed from queue: " + task.toString());
             
+            // A request still waiting for the user is refused
+            CompletableFuture<TransferStatus> decision = decisions.remove(taskId);
+            if (decision != null) {
+                decision.complete(TransferStatus.CANCELLED);
+            }
+            
             // Remove from persistence files
             if (task.getDirection() == TransferDirection.OUTGOING) {
                 queuePersistence.removeFromSendQueue(taskId);
@@ -147,6 +175,31 @@ public class TransferQueueManager {
         }
     }
     
+    /**
+     * Completes with the task's status once it leaves PENDING_APPROVAL (the user approves,
+     * rejects or cancels it), on the thread that changes the status, or at once if that
+     * already happened. Nothing polls: the status change completes the future.
+     */
+    public CompletableFuture<TransferStatus> decisionFor(TransferTask task) {
+        if (!tasks.containsKey(task.getId())) {
+            return CompletableFuture.completedFuture(TransferStatus.CANCELLED);
+        }
+        CompletableFuture<TransferStatus> decision = decisions.computeIfAbsent(task.getId(), id -> new CompletableFuture<>());
+        // The status may have changed before the future was registered
+        completeDecision(task);
+        return decision;
+    }
+    
+    private void completeDecision(TransferTask task) {
+        TransferStatus status = task.getStatus();
+        if (status != TransferStatus.PENDING_APPROVAL) {
+            CompletableFuture<TransferStatus> decision = decisions.remove(task.getId());
+            if (decision != null) {
+                decision.complete(status);
+            }
+        }
+    }
+    
     /**
      * Get task by ID
      */
@@ -154,6 +207,17 @@ public class TransferQueueManager {
         return tasks.get(taskId);
     }
     
+    /**
+     * Find the incoming task created for a sender's sequence ID
+     */
+    public TransferTask findTaskByExternalId(String remoteIP, String externalId) {
+        return tasks.values().stream()
+                .filter(task -> task.getDirection() == TransferDirection.INCOMING)
+                .filter(task -> task.getRemoteIP().equals(remoteIP) && task.getExternalId().equals(externalId))
+                .findFirst()
+                .orElse(null);
+    }
+    
     /**
      * Get all tasks
      */
@@ -211,6 +275,25 @@ public class TransferQueueManager {
         return getActiveTransferCount() < MAX_CONCURRENT_TRANSFERS;
     }
     
+    /**
+     * Take a slot for an outgoing task the receiver has approved, waiting while
+     * MAX_CONCURRENT_TRANSFERS others are moving bytes; the task becomes TRANSFERRING.
+     * Release it with releaseSendSlot.
+     */
+    public void acquireSendSlot(TransferTask task) throws InterruptedIOException {
+        try {
+            sendSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer slot");
+        }
+        updateTaskStatus(task.getId(), TransferStatus.TRANSFERRING);
+    }
+    
+    public void releaseSendSlot() {
+        sendSlots.release();
+    }
+    
     /**
      * Get next approved task waiting to transfer
      */
@@ -233,6 +316,23 @@ public class TransferQueueManager {
         }
     }
     
+    /**
+     * Queue failed outgoing tasks again. They keep their sequence ID,
+     * so the receiver resumes from the bytes it already has.
+     */
+    public void retryTasks(List<String> taskIds) {
+        for (String taskId : taskIds) {
+            TransferTask task = tasks.get(taskId);
+            if (task != null && task.getDirection() == TransferDirection.OUTGOING
+                    && task.getStatus() == TransferStatus.FAILED) {
+                task.setErrorMessage(null);
+                task.setProgress(0);
+                logger.log("Retrying transfer: " + task.getFileName());
+                updateTaskStatus(taskId, TransferStatus.APPROVED);
+            }
+        }
+    }
+    
     /**
      * Approve multiple tasks
      */
@@ -306,16 +406,19 @@ public class TransferQueueManager {
     }
     
     /**
-     * Execute a transfer task
+     * Execute an outgoing transfer task, from its request on (status AWAITING_REMOTE_APPROVAL).
+     * Progress updates also fire onTaskStatusChanged, so a task is only submitted once.
      */
     public void executeTransfer(String taskId, Runnable transferAction) {
         TransferTask task = tasks.get(taskId);
-        if (task != null && task.getStatus() == TransferStatus.TRANSFERRING) {
+        if (task != null && task.getStatus() == TransferStatus.AWAITING_REMOTE_APPROVAL && submittedTransfers.add(taskId)) {
             transferExecutor.submit(() -> {
                 try {
                     transferAction.run();
                 } catch (Exception e) {
                     markTaskFailed(taskId, e.getMessage());
+                } finally {
+                    submittedTransfers.remove(taskId);
                 }
             });
         }
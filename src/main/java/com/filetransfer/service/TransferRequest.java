@@ -0,0 +1,239 @@
+package com.filetransfer.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TRANSFER_REQUEST control line and its OK/KO reply. With peers that use binary control
+ * frames the same fields travel as typed frame fields instead (see ControlChannel).
+ *
+ * Request: TRANSFER_REQUEST:sequenceId:fileName:fileSize[:KEY=value]...
+ *          BATCH_REQUEST:sequenceId:label:totalSize:FILES=n[:KEY=value]... (see BatchTransfer)
+ * Reply:   OK:sequenceId[:KEY=value]... or KO:sequenceId
+ *
+ * Options are appended after the size so older fields keep their position.
+ * Parsing works from the right, so a file name may itself contain colons.
+ */
+public class TransferRequest {
+    
+    public static final String PREFIX = "TRANSFER_REQUEST:";
+    public static final String BATCH_PREFIX = "BATCH_REQUEST:";
+    private static final int MAX_LINE_LENGTH = 8192;
+    
+    // Option keys
+    public static final String STRIPES = "STRIPES";
+    public static final String RESUME = "RESUME";   // Sender can restart from a byte offset
+    public static final String OFFSET = "OFFSET";   // Bytes the receiver already holds
+    public static final String REASON = "REASON";   // Why a KO reply refused the transfer
+    public static final String COMPRESS = "COMPRESS"; // Payload codec (see BlockCompression)
+    public static final String CHECKSUM = "CHECKSUM"; // Payload trailer algorithm (see PayloadChecksum)
+    public static final String DELTA = "DELTA";       // Payload is a delta against the receiver's copy (see DeltaSync)
+    public static final String HASH = "HASH";         // SHA-256 of the file content (hex)
+    public static final String HAVE = "HAVE";         // Receiver already holds that content, nothing is sent
+    public static final String FILES = "FILES";       // Manifest lines following a batch request
+    public static final String FAILED = "FAILED";     // Batch verdict: index lines of files that were not saved follow
+    public static final String START = "START";       // Sender announces the payload with a START line once it has a slot
+    
+    public static final String REASON_NO_SPACE = "NO_SPACE";
+    public static final String REASON_CHECKSUM = "CHECKSUM";
+    
+    private final String prefix;
+    private final String sequenceId;
+    private final String fileName;
+    private final long fileSize;
+    private final Map<String, String> options = new LinkedHashMap<>();
+    
+    public TransferRequest(String sequenceId, String fileName, long fileSize) {
+        this(PREFIX, sequenceId, fileName, fileSize);
+    }
+    
+    private TransferRequest(String prefix, String sequenceId, String fileName, long fileSize) {
+        this.prefix = prefix;
+        this.sequenceId = sequenceId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+    }
+    
+    /**
+     * Request for a batch of fileCount files totalling totalSize bytes
+     */
+    public static TransferRequest batch(String sequenceId, String label, long totalSize, int fileCount) {
+        TransferRequest request = new TransferRequest(BATCH_PREFIX, sequenceId, label, totalSize);
+        request.setOption(FILES, String.valueOf(fileCount));
+        return request;
+    }
+    
+    /**
+     * Request decoded from a binary control frame (see ControlChannel)
+     */
+    static TransferRequest create(boolean batch, String sequenceId, String fileName, long fileSize) {
+        return new TransferRequest(batch ? BATCH_PREFIX : PREFIX, sequenceId, fileName, fileSize);
+    }
+    
+    /**
+     * Parse a request line
+     * @throws IllegalArgumentException if the line is malformed
+     *         (NumberFormatException if only the size is invalid)
+     */
+    public static TransferRequest parse(String line) {
+        String prefix;
+        if (line != null && line.startsWith(PREFIX)) {
+            prefix = PREFIX;
+        } else if (line != null && line.startsWith(BATCH_PREFIX)) {
+            prefix = BATCH_PREFIX;
+        } else {
+            throw new IllegalArgumentException("Not a transfer request");
+        }
+        
+        String[] parts = line.split(":", -1);
+        if (parts.length < 4) {
+            throw new IllegalArgumentException("Invalid transfer request format");
+        }
+        
+        // Trailing KEY=value tokens are options, the token before them is the size
+        int sizeIndex = parts.length - 1;
+        while (sizeIndex > 3 && isOption(parts[sizeIndex])) {
+            sizeIndex--;
+        }
+        
+        String fileName = String.join(":", java.util.Arrays.copyOfRange(parts, 2, sizeIndex));
+        if (parts[1].isEmpty() || fileName.isEmpty()) {
+            throw new IllegalArgumentException("Invalid transfer request format");
+        }
+        
+        TransferRequest request = new TransferRequest(prefix, parts[1], fileName, Long.parseLong(parts[sizeIndex]));
+        request.options.putAll(parseOptions(parts, sizeIndex + 1));
+        return request;
+    }
+    
+    public String toLine() {
+        return prefix + sequenceId + ":" + fileName + ":" + fileSize + formatOptions(options);
+    }
+    
+    /**
+     * Build an OK/KO reply line
+     */
+    public static String reply(String verdict, String sequenceId, Map<String, String> options) {
+        return verdict + ":" + sequenceId + formatOptions(options);
+    }
+    
+    /**
+     * Options carried by an OK/KO reply line
+     */
+    public static Map<String, String> replyOptions(String reply) {
+        return parseOptions(reply.split(":", -1), 2);
+    }
+    
+    /**
+     * Read one control line byte by byte. Unlike a BufferedReader this never reads past
+     * the line, so binary data sent right after it stays in the stream.
+     * @return the line without its terminator, or null at end of stream
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.size() > 0 ? line.toString(Charset.defaultCharset()) : null;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Control line too long");
+            }
+            line.write(b);
+        }
+        String text = line.toString(Charset.defaultCharset());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+    
+    /**
+     * Long option value, or the default if absent or malformed
+     */
+    public static long longOption(Map<String, String> options, String key, long defaultValue) {
+        try {
+            String value = options.get(key);
+            return value != null ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Integer option value, or the default if absent or malformed
+     */
+    public static int intOption(Map<String, String> options, String key, int defaultValue) {
+        try {
+            String value = options.get(key);
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    private static boolean isOption(String token) {
+        int eq = token.indexOf('=');
+        if (eq <= 0) {
+            return false;
+        }
+        for (int i = 0; i < eq; i++) {
+            char c = token.charAt(i);
+            if (!(c >= 'A' && c <= 'Z') && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static Map<String, String> parseOptions(String[] parts, int from) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = from; i < parts.length; i++) {
+            if (isOption(parts[i])) {
+                int eq = parts[i].indexOf('=');
+                options.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+            }
+        }
+        return options;
+    }
+    
+    private static String formatOptions(Map<String, String> options) {
+        if (options == null || options.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            sb.append(':').append(option.getKey()).append('=').append(option.getValue());
+        }
+        return sb.toString();
+    }
+    
+    public boolean isBatch() {
+        return BATCH_PREFIX.equals(prefix);
+    }
+    
+    public String getSequenceId() {
+        return sequenceId;
+    }
+    
+    public String getFileName() {
+        return fileName;
+    }
+    
+    public long getFileSize() {
+        return fileSize;
+    }
+    
+    public String getOption(String key) {
+        return options.get(key);
+    }
+    
+    public Map<String, String> getOptions() {
+        return options;
+    }
+    
+    public void setOption(String key, String value) {
+        options.put(key, value);
+    }
+}
@@ -0,0 +1,251 @@
+package com.filetransfer.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * SHA-256 content hashes of files, keyed by path and remembered with the size and
+ * modification time they were computed for, so an unchanged file is never hashed twice.
+ * Persisted as an append-only file; later lines override earlier ones.
+ * Format: hash|size|mtime|path
+ */
+public class FileHashIndex {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final String REMOVED = "-";
+
+    private final Logger logger;
+    private final File indexFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Set<String>> pathsByHash = new HashMap<>();
+
+    public FileHashIndex(Logger logger, File indexFile) {
+        this.logger = logger;
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * SHA-256 of the file, from the index if the file is unchanged since it was last hashed
+     */
+    public String hash(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                return entry.hash;
+            }
+        }
+
+        String hash = sha256(file);
+        // Only remember the hash if the file did not change while it was read
+        if (file.length() == size && file.lastModified() == modified) {
+            put(path, new Entry(hash, size, modified));
+        }
+        return hash;
+    }
+
+    /**
+     * Record a hash that is already known (e.g. for a link to an indexed file)
+     */
+    public void record(File file, String hash) {
+        put(file.getAbsolutePath(), new Entry(hash, file.length(), file.lastModified()));
+    }
+
+    /**
+     * An indexed, unchanged file with this content, or null
+     */
+    public synchronized File find(String hash, long size) {
+        Set<String> paths = pathsByHash.get(hash);
+        if (paths == null) {
+            return null;
+        }
+        for (String path : new ArrayList<>(paths)) {
+            Entry entry = entries.get(path);
+            File file = new File(path);
+            if (file.isFile() && file.length() == entry.size && file.lastModified() == entry.modified) {
+                if (entry.size == size) {
+                    return file;
+                }
+            } else {
+                forget(path);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bring the index up to date with a directory: hash new or changed files and
+     * drop entries for files that are gone
+     */
+    public void refresh(File directory, FileFilter filter) {
+        File[] files = directory.listFiles(filter);
+        if (files == null) {
+            return;
+        }
+
+        int hashed = 0;
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                Entry before;
+                synchronized (this) {
+                    before = entries.get(file.getAbsolutePath());
+                }
+                hash(file);
+                if (before == null || before.size != file.length() || before.modified != file.lastModified()) {
+                    hashed++;
+                }
+            } catch (IOException e) {
+                logger.log("WARNING: Could not hash " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        String prefix = directory.getAbsolutePath() + File.separator;
+        synchronized (this) {
+            for (String path : new ArrayList<>(entries.keySet())) {
+                if (path.startsWith(prefix) && !new File(path).isFile()) {
+                    forget(path);
+                }
+            }
+        }
+        logger.log("Hash index of " + directory.getName() + " up to date (" + hashed + " files hashed)");
+    }
+
+    private synchronized void put(String path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            removePath(previous.hash, path);
+        }
+        pathsByHash.computeIfAbsent(entry.hash, h -> new HashSet<>()).add(path);
+        append(entry.hash + "|" + entry.size + "|" + entry.modified + "|" + path);
+    }
+
+    private void forget(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            removePath(entry.hash, path);
+            append(REMOVED + "|0|0|" + path);
+        }
+    }
+
+    private void removePath(String hash, String path) {
+        Set<String> paths = pathsByHash.get(hash);
+        if (paths != null) {
+            paths.remove(path);
+            if (paths.isEmpty()) {
+                pathsByHash.remove(hash);
+            }
+        }
+    }
+
+    private void append(String line) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile, true))) {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            logger.log("ERROR: Could not update hash index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load the index, then rewrite it without overridden lines
+     */
+    private synchronized void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\|", 4);
+                if (parts.length < 4) {
+                    continue;
+                }
+                lines++;
+                Entry previous = entries.remove(parts[3]);
+                if (previous != null) {
+                    removePath(previous.hash, parts[3]);
+                }
+                if (!REMOVED.equals(parts[0])) {
+                    try {
+                        entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                        pathsByHash.computeIfAbsent(parts[0], h -> new HashSet<>()).add(parts[3]);
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+        } catch (IOException e) {
+            logger.log("ERROR: Could not load hash index: " + e.getMessage());
+            return;
+        }
+
+        if (lines > entries.size()) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        File temp = new File(indexFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(entry.hash + "|" + entry.size + "|" + entry.modified + "|" + e.getKey());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            logger.log("ERROR: Could not compact hash index: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log("ERROR: Could not compact hash index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hex SHA-256 of a file's content
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static class Entry {
+        final String hash;
+        final long size;
+        final long modified;
+
+        Entry(String hash, long size, long modified) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -3,11 +3,13 @@ package com.filetransfer.util;
 import java.io.*;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SessionManager {
     
     private static final String SESSION_FILE = "session_compatible_devices.dat";
     private Set<String> compatibleDevices;
+    private final Set<String> binaryControlDevices = ConcurrentHashMap.newKeySet(); // Learned at handshake, not saved
     private Logger logger;
     private String sessionFilePath;
     
@@ -76,6 +78,24 @@ public class SessionManager {
         return compatibleDevices.contains(ipAddress);
     }
     
+    /**
+     * Record whether a device answered the handshake in the binary control protocol
+     */
+    public void setBinaryControl(String ipAddress, boolean supported) {
+        if (supported) {
+            binaryControlDevices.add(ipAddress);
+        } else {
+            binaryControlDevices.remove(ipAddress);
+        }
+    }
+    
+    /**
+     * Whether control messages to this device are sent as binary frames (text lines otherwise)
+     */
+    public boolean usesBinaryControl(String ipAddress) {
+        return binaryControlDevices.contains(ipAddress);
+    }
+    
     /**
      * Remove a device from the compatible list
      */
@@ -0,0 +1,107 @@
+package com.filetransfer.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads for network and transfer work: platform threads by default, or virtual
+ * threads when enabled (app.threads.virtual) and the JVM has them (Java 21+). The app is
+ * built for Java 17, so virtual threads are reached through reflection; on an older JVM the
+ * setting falls back to platform threads.
+ *
+ * Call setVirtual before the services start: executors take their factory when created.
+ */
+public final class Threads {
+    
+    private static final Method OF_VIRTUAL = find(Thread.class, "ofVirtual");
+    private static final Class<?> BUILDER = OF_VIRTUAL != null ? OF_VIRTUAL.getReturnType() : null; // Thread.Builder.OfVirtual
+    private static final Method BUILDER_NAME = find(BUILDER, "name", String.class);
+    private static final Method BUILDER_NAME_COUNTER = find(BUILDER, "name", String.class, long.class);
+    private static final Method BUILDER_UNSTARTED = find(BUILDER, "unstarted", Runnable.class);
+    private static final Method BUILDER_FACTORY = find(BUILDER, "factory");
+    
+    private static volatile boolean virtual = false;
+    
+    private Threads() {
+    }
+    
+    /**
+     * Whether this JVM supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_NAME_COUNTER != null
+            && BUILDER_UNSTARTED != null && BUILDER_FACTORY != null;
+    }
+    
+    /**
+     * Use virtual threads from now on if enabled and supported
+     * @return true if virtual threads are in use
+     */
+    public static boolean setVirtual(boolean enabled) {
+        virtual = enabled && isVirtualSupported();
+        return virtual;
+    }
+    
+    public static boolean isVirtual() {
+        return virtual;
+    }
+    
+    /**
+     * An unstarted thread running task. Platform threads get the daemon flag; virtual
+     * threads are always daemon threads.
+     */
+    public static Thread newThread(String name, boolean daemon, Runnable task) {
+        if (virtual) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+    
+    /**
+     * Start a thread running task
+     */
+    public static Thread start(String name, boolean daemon, Runnable task) {
+        Thread thread = newThread(name, daemon, task);
+        thread.start();
+        return thread;
+    }
+    
+    /**
+     * Thread factory for an executor, naming threads prefix1, prefix2, ...
+     */
+    public static ThreadFactory factory(String prefix, boolean daemon) {
+        if (virtual) {
+            try {
+                Object builder = BUILDER_NAME_COUNTER.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual thread factory", e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + count.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+    
+    private static Method find(Class<?> type, String name, Class<?>... parameters) {
+        if (type == null) {
+            return null;
+        }
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.filetransfer.util;
+
+import com.filetransfer.model.TransferTask.TransferEngine;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Properties;
+
+/**
+ * Transport settings from application.properties: socket options, buffer sizes, timeouts
+ * and the transfer features. The file bundled with the app holds the defaults; an
+ * application.properties in the working directory overrides any of them.
+ *
+ * Socket options, the connect timeout, the stripe count and rate limits can be set per peer:
+ *   app.peer.<ip>.socket.sendBufferSize=4194304
+ */
+public class TransportConfig {
+    
+    private static final String RESOURCE = "/application.properties";
+    private static final String OVERRIDE_FILE = "application.properties";
+    private static final String PEER_PREFIX = "app.peer.";
+    
+    // Keys
+    public static final String BUFFER_SIZE = "app.transfer.bufferSize";            // Stream engine copy chunk
+    public static final String FRAMED_BUFFER_SIZE = "app.transfer.framedBufferSize"; // Compressed, delta and batch streams
+    public static final String TRANSFER_TIMEOUT = "app.transfer.timeout";          // Payload reads
+    public static final String APPROVAL_TIMEOUT = "app.transfer.approvalTimeout";  // Sender waiting for OK
+    public static final String COMMAND_TIMEOUT = "app.transfer.commandTimeout";    // First message, handshake answer
+    public static final String STRIPE_TIMEOUT = "app.transfer.stripeTimeout";      // Receiver waiting for stripe connections
+    public static final String START_TIMEOUT = "app.transfer.startTimeout";        // Receiver waiting for an approved sender's slot
+    public static final String ENGINE = "app.transfer.engine";
+    public static final String RECEIVE_ENGINE = "app.transfer.receiveEngine";
+    public static final String MAPPED_THRESHOLD = "app.transfer.mappedThreshold";
+    public static final String STRIPES = "app.transfer.stripes";
+    public static final String MAX_STRIPES = "app.transfer.maxStripes";
+    public static final String COMPRESS = "app.transfer.compress";
+    public static final String DELTA = "app.transfer.delta";
+    public static final String DEDUP = "app.transfer.dedup";
+    public static final String CHECKSUM = "app.transfer.checksum";
+    public static final String SEND_BUFFER_SIZE = "app.socket.sendBufferSize";     // SO_SNDBUF, 0 leaves it to the OS
+    public static final String RECEIVE_BUFFER_SIZE = "app.socket.receiveBufferSize"; // SO_RCVBUF, 0 leaves it to the OS
+    public static final String TCP_NO_DELAY = "app.socket.tcpNoDelay";
+    public static final String CONNECT_TIMEOUT = "app.socket.connectTimeout";
+    public static final String SEND_RATE = "app.limit.sendRate";                   // Bytes per second, 0 = unlimited
+    public static final String RECEIVE_RATE = "app.limit.receiveRate";
+    public static final String EVENT_LOOPS = "app.listener.eventLoops";            // Selector threads of the port listener
+    public static final String WORKERS = "app.listener.workers";                   // Threads for blocking work (transfers)
+    public static final String VIRTUAL_THREADS = "app.threads.virtual";            // Virtual threads for network work (Java 21+)
+    public static final String SCAN_PEER_TTL = "app.scan.peerTtl";                // Cached devices trusted without a probe
+    public static final String SCAN_SWEEP_TTL = "app.scan.sweepTtl";              // Subnets swept in full at most this often
+    public static final String SCAN_PROBE_RATE = "app.scan.probeRate";            // Connects per second across a scan, 0 = unlimited
+    public static final String BEACON = "app.discovery.beacon";                   // Announce presence and listen for peers
+    public static final String BEACON_GROUP = "app.discovery.group";              // Multicast group of the beacons
+    public static final String BEACON_PORT = "app.discovery.port";                // UDP port of the beacons
+    public static final String BEACON_INTERVAL = "app.discovery.interval";        // Milliseconds between beacons
+    
+    private final Properties properties;
+    
+    public TransportConfig(Properties properties) {
+        this.properties = properties;
+    }
+    
+    /**
+     * Built-in defaults only, for code that runs without a loaded configuration
+     */
+    public static TransportConfig defaults() {
+        return new TransportConfig(new Properties());
+    }
+    
+    /**
+     * Load the bundled application.properties, then the one in the working directory if any.
+     * Values that are not valid numbers or engine names are logged and ignored.
+     */
+    public static TransportConfig load(Logger logger) {
+        Properties properties = new Properties();
+        try (InputStream in = TransportConfig.class.getResourceAsStream(RESOURCE)) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            logger.log("WARNING: Could not read bundled " + OVERRIDE_FILE + ": " + e.getMessage());
+        }
+    
+        File override = new File(System.getProperty("user.dir"), OVERRIDE_FILE);
+        if (override.isFile()) {
+            try (InputStream in = new FileInputStream(override)) {
+                properties.load(in);
+                logger.log("Loaded settings from " + override.getPath());
+            } catch (IOException e) {
+                logger.log("WARNING: Could not read " + override.getPath() + ": " + e.getMessage());
+            }
+        }
+    
+        TransportConfig config = new TransportConfig(properties);
+        config.dropInvalid(logger);
+        return config;
+    }
+    
+    public int getBufferSize() {
+        return Math.max(1024, getInt(BUFFER_SIZE, null, 8192));
+    }
+    
+    public int getFramedBufferSize() {
+        return Math.max(8192, getInt(FRAMED_BUFFER_SIZE, null, 256 * 1024));
+    }
+    
+    public int getTransferTimeout() {
+        return getInt(TRANSFER_TIMEOUT, null, 30000);
+    }
+    
+    public int getApprovalTimeout() {
+        return getInt(APPROVAL_TIMEOUT, null, 60000);
+    }
+    
+    public int getCommandTimeout() {
+        return getInt(COMMAND_TIMEOUT, null, 5000);
+    }
+    
+    public long getStripeTimeout() {
+        return getInt(STRIPE_TIMEOUT, null, 60000);
+    }
+    
+    public int getStartTimeout() {
+        return getInt(START_TIMEOUT, null, 600000);
+    }
+    
+    public int getConnectTimeout(String peerIP) {
+        return getInt(CONNECT_TIMEOUT, peerIP, 10000);
+    }
+    
+    public TransferEngine getEngine() {
+        return TransferEngine.valueOf(get(ENGINE, null, TransferEngine.ZERO_COPY.name()));
+    }
+    
+    public TransferEngine getReceiveEngine() {
+        return TransferEngine.valueOf(get(RECEIVE_ENGINE, null, TransferEngine.ZERO_COPY.name()));
+    }
+    
+    public long getMappedThreshold() {
+        return Long.parseLong(get(MAPPED_THRESHOLD, null, String.valueOf(256L * 1024L * 1024L)));
+    }
+    
+    /**
+     * Stripes offered for large files
+     */
+    public int getStripes() {
+        return getInt(STRIPES, null, 4);
+    }
+    
+    /**
+     * Stripes offered to this peer if it has an override, else defaultValue
+     */
+    public int getStripes(String peerIP, int defaultValue) {
+        String value = getPeer(STRIPES, peerIP);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+    
+    public int getMaxStripes() {
+        return getInt(MAX_STRIPES, null, 8);
+    }
+    
+    public boolean isCompressionEnabled() {
+        return Boolean.parseBoolean(get(COMPRESS, null, "false"));
+    }
+    
+    public boolean isDeltaEnabled() {
+        return Boolean.parseBoolean(get(DELTA, null, "false"));
+    }
+    
+    public boolean isDedupEnabled() {
+        return Boolean.parseBoolean(get(DEDUP, null, "false"));
+    }
+    
+    public boolean isChecksumEnabled() {
+        return Boolean.parseBoolean(get(CHECKSUM, null, "true"));
+    }
+    
+    /**
+     * Outbound limit for all peers together, in bytes per second (0 = unlimited)
+     */
+    public long getSendRate() {
+        return Long.parseLong(get(SEND_RATE, null, "0"));
+    }
+    
+    public long getReceiveRate() {
+        return Long.parseLong(get(RECEIVE_RATE, null, "0"));
+    }
+    
+    /**
+     * Outbound limit for this peer alone, on top of the global one (0 = none)
+     */
+    public long getPeerSendRate(String peerIP) {
+        String value = getPeer(SEND_RATE, peerIP);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+    
+    public long getPeerReceiveRate(String peerIP) {
+        String value = getPeer(RECEIVE_RATE, peerIP);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+    
+    public int getEventLoops() {
+        return Math.max(1, getInt(EVENT_LOOPS, null, 2));
+    }
+    
+    public int getWorkers() {
+        return Math.max(2, getInt(WORKERS, null, 64));
+    }
+    
+    public boolean isVirtualThreads() {
+        return Boolean.parseBoolean(get(VIRTUAL_THREADS, null, "false"));
+    }
+    
+    public long getScanPeerTtl() {
+        return getInt(SCAN_PEER_TTL, null, 60000);
+    }
+    
+    public long getScanSweepTtl() {
+        return getInt(SCAN_SWEEP_TTL, null, 300000);
+    }
+    
+    public long getScanProbeRate() {
+        return Long.parseLong(get(SCAN_PROBE_RATE, null, "2000"));
+    }
+    
+    public boolean isBeaconEnabled() {
+        return Boolean.parseBoolean(get(BEACON, null, "true"));
+    }
+    
+    public String getBeaconGroup() {
+        return get(BEACON_GROUP, null, "239.255.69.69");
+    }
+    
+    public int getBeaconPort() {
+        return getInt(BEACON_PORT, null, 8080);
+    }
+    
+    public long getBeaconInterval() {
+        return Math.max(500, getInt(BEACON_INTERVAL, null, 5000));
+    }
+    
+    /**
+     * Set the configured socket options on a socket to or from peerIP. Buffer sizes must be
+     * set before connecting to count for the TCP window, so outgoing sockets are created
+     * unconnected and connected after this call.
+     */
+    public void applyTo(Socket socket, String peerIP) throws SocketException {
+        int sendBuffer = getInt(SEND_BUFFER_SIZE, peerIP, 0);
+        if (sendBuffer > 0) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+        int receiveBuffer = getInt(RECEIVE_BUFFER_SIZE, peerIP, 0);
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        // Control messages are small and always waited for, so they must not sit in Nagle's buffer
+        socket.setTcpNoDelay(Boolean.parseBoolean(get(TCP_NO_DELAY, peerIP, "true")));
+    }
+    
+    /**
+     * Set the receive buffer on the listening socket, before bind: accepted connections
+     * inherit it, and only then does it shape the window they advertise
+     */
+    public void applyTo(ServerSocket serverSocket) throws SocketException {
+        int receiveBuffer = getInt(RECEIVE_BUFFER_SIZE, null, 0);
+        if (receiveBuffer > 0) {
+            serverSocket.setReceiveBufferSize(receiveBuffer);
+        }
+    }
+    
+    /**
+     * Value for the peer if it has an override, else the global one
+     */
+    private String get(String key, String peerIP, String defaultValue) {
+        String value = peerIP != null ? getPeer(key, peerIP) : null;
+        if (value != null) {
+            return value;
+        }
+        value = properties.getProperty(key);
+        return value != null ? value.trim() : defaultValue;
+    }
+    
+    /**
+     * The peer's own value (app.peer.<ip>.<key without app.>), or null
+     */
+    private String getPeer(String key, String peerIP) {
+        String value = properties.getProperty(PEER_PREFIX + peerIP + "." + key.substring("app.".length()));
+        return value != null ? value.trim() : null;
+    }
+    
+    private int getInt(String key, String peerIP, int defaultValue) {
+        return Integer.parseInt(get(key, peerIP, String.valueOf(defaultValue)));
+    }
+    
+    /**
+     * Remove numeric and engine settings (global or per peer) that would not parse, so the
+     * getters can rely on every value present
+     */
+    private void dropInvalid(Logger logger) {
+        for (String name : properties.stringPropertyNames()) {
+            String value = properties.getProperty(name).trim();
+            try {
+                if (name.endsWith("Engine") || name.endsWith(".engine")) {
+                    TransferEngine.valueOf(value);
+                } else if (name.endsWith(".mappedThreshold") || name.endsWith("Rate")) {
+                    if (Long.parseLong(value) < 0) {
+                        throw new IllegalArgumentException();
+                    }
+                } else if (name.endsWith("Size") || name.endsWith("Timeout") || name.endsWith(".timeout")
+                        || name.endsWith("Stripes") || name.endsWith(".stripes")
+                        || name.endsWith("Loops") || name.endsWith(".workers")
+                        || name.endsWith(".port") || name.endsWith(".interval") || name.endsWith("Ttl")) {
+                    if (Integer.parseInt(value) < 0) {
+                        throw new IllegalArgumentException();
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                logger.log("WARNING: Ignoring invalid setting " + name + "=" + value);
+                properties.remove(name);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.filetransfer.service;
+
+import com.filetransfer.model.TransferTask;
+import com.filetransfer.util.Logger;
+import com.filetransfer.util.SessionManager;
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Setup shared by the benchmarks next to it. They are plain main classes, not tests, so
+ * surefire leaves them alone; build them with mvn test-compile and run one with
+ *
+ *   java -cp target/classes:target/test-classes com.filetransfer.service.TransportBench
+ *
+ * Benchmarks that listen take port 8080, so the app must not be running. Thread and memory
+ * figures come from /proc and are only printed on Linux.
+ */
+final class Bench {
+
+    static final String LOCALHOST = "127.0.0.1";
+    static final int PORT = 8080;
+
+    private Bench() {
+    }
+
+    /**
+     * Empty working directory; queue and session files of the services land in it too
+     */
+    static Path workDir(String name) throws IOException {
+        Path dir = Files.createTempDirectory(name);
+        System.setProperty("user.dir", dir.toString());
+        return dir;
+    }
+
+    /**
+     * Logger that keeps the console for results: errors go to stderr, the rest is dropped
+     */
+    static Logger logger(Path dir) {
+        return new Logger(dir.resolve("bench.log").toString()) {
+            @Override
+            public void log(String message) {
+                if (message.startsWith("ERROR")) {
+                    System.err.println(message);
+                }
+            }
+        };
+    }
+
+    /**
+     * Transport settings from key=value arguments, on top of the defaults
+     */
+    static TransportConfig config(String... settings) {
+        Properties properties = new Properties();
+        for (String setting : settings) {
+            int eq = setting.indexOf('=');
+            properties.setProperty(setting.substring(0, eq), setting.substring(eq + 1));
+        }
+        return new TransportConfig(properties);
+    }
+
+    /**
+     * Value of a --name=value argument
+     */
+    static String arg(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+
+    static int intArg(String[] args, String name, int defaultValue) {
+        return Integer.parseInt(arg(args, name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * A field of /proc/<pid>/status (Threads, VmRSS...), or -1 where there is none
+     */
+    static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    static void handshake() throws IOException {
+        try (Socket socket = new Socket(LOCALHOST, PORT)) {
+            socket.getOutputStream().write((ControlChannel.HANDSHAKE + "\n").getBytes());
+            new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+        }
+    }
+
+    /**
+     * Wait until something accepts connections on the listener port
+     */
+    static void awaitListening() throws IOException, InterruptedException {
+        for (int i = 0; ; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(LOCALHOST, PORT), 1000);
+                return;
+            } catch (IOException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * A receiving app: listener, queue and mailbox, approving every incoming request unless
+     * told to hold them. The local peer is already compatible, so no handshake is needed.
+     */
+    static final class Receiver implements Closeable {
+
+        final Path mailbox;
+        final TransferQueueManager queue;
+        final FileTransferService service;
+        final PortListener listener;
+        private final Thread approver;
+
+        Receiver(Path dir, Logger logger, TransportConfig config) throws IOException, InterruptedException {
+            this(dir, logger, config, true);
+        }
+
+        Receiver(Path dir, Logger logger, TransportConfig config, boolean approve)
+                throws IOException, InterruptedException {
+            Threads.setVirtual(config.isVirtualThreads());
+            mailbox = dir.resolve("mailbox");
+            SessionManager sessions = new SessionManager(logger);
+            sessions.addCompatibleDevice(LOCALHOST);
+            queue = new TransferQueueManager(logger);
+            service = new FileTransferService(logger, mailbox.toString(), sessions);
+            service.setQueueManager(queue);
+            service.setTransportConfig(config);
+            service.setReceiveEngine(config.getReceiveEngine());
+            listener = new PortListener(logger, service, sessions);
+            listener.setQueueManager(queue);
+            listener.setTransportConfig(config);
+            listener.setMaxStripes(config.getMaxStripes());
+            listener.start();
+            approver = !approve ? null : Threads.start("bench-approver", true, () -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    for (TransferTask task : queue.getPendingApprovalTasks()) {
+                        queue.updateTaskStatus(task.getId(), TransferTask.TransferStatus.APPROVED);
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            awaitListening();
+        }
+
+        /**
+         * Delete what has been received so far
+         */
+        void clearMailbox() throws IOException {
+            try (var files = Files.list(mailbox)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (approver != null) {
+                approver.interrupt();
+            }
+            listener.stop();
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * A Receiver in a child JVM, so its thread count and memory are measured on their own.
+     * It uses the same java binary and class path as this one; its errors show on our stderr.
+     */
+    static final class ChildReceiver implements Closeable {
+
+        private final Process process;
+        private final BufferedReader out;
+        private final PrintStream in;
+
+        ChildReceiver(String... settings) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Bench.class.getName());
+            command.addAll(List.of(settings));
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            in = new PrintStream(process.getOutputStream(), true);
+            if (!"ready".equals(out.readLine())) {
+                throw new IOException("Receiver did not start");
+            }
+        }
+
+        long pid() {
+            return process.pid();
+        }
+
+        long threads() {
+            return procStatus(process.pid(), "Threads");
+        }
+
+        long rssMb() {
+            return procStatus(process.pid(), "VmRSS") / 1024;
+        }
+
+        /**
+         * Heap in use after a full collection in the child
+         */
+        long heapMb() throws IOException {
+            in.println("heap");
+            return Long.parseLong(out.readLine()) / (1024 * 1024);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Child side of ChildReceiver: settings as key=value arguments, --hold to leave requests
+     * waiting for approval. Answers "heap" on stdin with the heap in use; stops when stdin closes.
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = workDir("bench-receiver");
+        List<String> settings = new ArrayList<>(List.of(args));
+        boolean approve = !settings.remove("--hold");
+        Receiver receiver = new Receiver(dir, logger(dir), config(settings.toArray(new String[0])), approve);
+        try {
+            System.out.println("ready");
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+            String command;
+            while ((command = commands.readLine()) != null) {
+                if (command.equals("heap")) {
+                    Runtime runtime = Runtime.getRuntime();
+                    System.gc();
+                    System.out.println(runtime.totalMemory() - runtime.freeMemory());
+                }
+            }
+        } finally {
+            receiver.close();
+        }
+        System.exit(0);
+    }
+}
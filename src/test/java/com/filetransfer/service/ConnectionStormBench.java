@@ -0,0 +1,112 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.Threads;
+import com.filetransfer.util.TransportConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection storm against a receiver on platform threads, then on virtual threads
+ * (app.threads.virtual): --connections concurrent transfers of --size bytes each, all approved.
+ * Reports completed and failed transfers, the receiver's peak thread count, its RSS and the wall time.
+ *
+ *   java -cp target/classes:target/test-classes com.filetransfer.service.ConnectionStormBench [--connections=2000] [--size=65536]
+ *
+ * The receiver gets as many workers as connections, so neither mode drops any; pass
+ * app.listener.workers=64 to see the default pool overflow instead. Virtual threads need
+ * Java 21 to run this with; on Java 17 only the platform run is made.
+ */
+final class ConnectionStormBench {
+
+    private static final long SAMPLE_INTERVAL_MS = 20;
+
+    private ConnectionStormBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = Bench.intArg(args, "connections", 2000);
+        int size = Bench.intArg(args, "size", 65536);
+        String workers = TransportConfig.WORKERS + "=" + connections;
+        for (String arg : args) {
+            if (arg.startsWith(TransportConfig.WORKERS + "=")) {
+                workers = arg;
+            }
+        }
+        System.out.println(connections + " concurrent transfers of " + size + " bytes, " + workers);
+        storm("platform", connections, size, workers, TransportConfig.VIRTUAL_THREADS + "=false");
+        if (Threads.isVirtualSupported()) {
+            storm("virtual", connections, size, workers, TransportConfig.VIRTUAL_THREADS + "=true");
+        } else {
+            System.out.println("virtual: needs Java 21, skipped");
+        }
+    }
+
+    private static void storm(String label, int connections, int size, String... settings) throws Exception {
+        try (Bench.ChildReceiver receiver = new Bench.ChildReceiver(settings)) {
+            Bench.handshake();
+            AtomicInteger ok = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(connections);
+            long[] peakThreads = {receiver.threads()};
+            Thread sampler = Threads.start("storm-sampler", true, () -> {
+                while (done.getCount() > 0) {
+                    peakThreads[0] = Math.max(peakThreads[0], receiver.threads());
+                    try {
+                        Thread.sleep(SAMPLE_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            byte[] payload = new byte[size];
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                String sequenceId = String.valueOf(1_000_000 + i);
+                Thread client = new Thread(() -> {
+                    try {
+                        send(sequenceId, payload);
+                        ok.incrementAndGet();
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                client.start();
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            sampler.join();
+            System.out.printf("%-9s %5d ok %5d failed   peak threads %5d   RSS %5d MB   %6.1f s%n", label + ":",
+                ok.get(), failed.get(), peakThreads[0], receiver.rssMb(), elapsed / 1e9);
+        }
+    }
+
+    /**
+     * One raw text-protocol transfer: request, wait for OK, payload, wait for the receiver to close
+     */
+    private static void send(String sequenceId, byte[] payload) throws IOException {
+        try (Socket socket = new Socket(Bench.LOCALHOST, Bench.PORT)) {
+            socket.setSoTimeout(120_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("TRANSFER_REQUEST:" + sequenceId + ":s" + sequenceId + ".bin:" + payload.length + "\n").getBytes());
+            out.flush();
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            if (reply == null || !reply.startsWith("OK")) {
+                throw new IOException("Refused: " + reply);
+            }
+            out.write(payload);
+            out.flush();
+            socket.shutdownOutput();
+            while (socket.getInputStream().read() != -1) {
+            }
+        }
+    }
+}
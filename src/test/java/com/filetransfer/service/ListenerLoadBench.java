@@ -0,0 +1,90 @@
+package com.filetransfer.service;
+
+import com.filetransfer.util.TransportConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load on the port listener: many idle connections that never finish their first command,
+ * plus transfer requests left waiting for approval. Reports the receiver's threads and
+ * heap and resident memory before and under the load, and how many connections it kept.
+ *
+ *   java -cp target/classes:target/test-classes com.filetransfer.service.ListenerLoadBench [--idle=4000] [--pending=1000]
+ *
+ * The receiver runs in a child JVM with a long command timeout, so idle connections are held
+ * rather than dropped after 5 s. Further key=value arguments go to its transport settings.
+ */
+final class ListenerLoadBench {
+
+    private ListenerLoadBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int idle = Bench.intArg(args, "idle", 4000);
+        int pending = Bench.intArg(args, "pending", 1000);
+        List<String> settings = new ArrayList<>(List.of("--hold", TransportConfig.COMMAND_TIMEOUT + "=600000"));
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                settings.add(arg);
+            }
+        }
+        List<SocketChannel> connections = new ArrayList<>();
+        InetSocketAddress address = new InetSocketAddress(Bench.LOCALHOST, Bench.PORT);
+        try (Bench.ChildReceiver receiver = new Bench.ChildReceiver(settings.toArray(new String[0]))) {
+            Thread.sleep(1000);
+            report("receiver idle", receiver);
+            long start = System.nanoTime();
+            for (int i = 0; i < pending; i++) {
+                connections.add(open(address, "TRANSFER_REQUEST:" + (i + 1) + ":f" + i + ".bin:1000\n"));
+            }
+            for (int i = 0; i < idle; i++) {
+                // A command that never ends
+                connections.add(open(address, "TRANSFER_REQ"));
+            }
+            System.out.printf("Opened %d connections in %d ms%n", connections.size(),
+                (System.nanoTime() - start) / 1_000_000);
+            Thread.sleep(3000);
+            report(pending + " pending + " + idle + " idle", receiver);
+            System.out.println("Connections still open: " + countOpen(connections) + " of " + connections.size());
+        } finally {
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private static SocketChannel open(InetSocketAddress address, String message) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.write(ByteBuffer.wrap(message.getBytes()));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Connections the receiver has not closed; nothing is sent on a held one
+     */
+    private static int countOpen(List<SocketChannel> connections) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        int open = 0;
+        for (SocketChannel connection : connections) {
+            try {
+                if (connection.read(buffer.clear()) == 0) {
+                    open++;
+                }
+            } catch (IOException e) {
+                // Reset by the receiver
+            }
+        }
+        return open;
+    }
+
+    private static void report(String label, Bench.ChildReceiver receiver) throws IOException {
+        System.out.printf("%-32s threads %5d   heap %4d MB   RSS %5d MB%n", label + ":",
+            receiver.threads(), receiver.heapMb(), receiver.rssMb());
+    }
+}
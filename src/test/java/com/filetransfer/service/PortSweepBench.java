@@ -0,0 +1,116 @@
+package com.filetransfer.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PortSweep against a loopback stand-in network: --listeners hosts of 127.0.0.0/24 listen on
+ * port 8080 and the rest refuse. Also sweeps a /24 where nothing answers (TEST-NET-1), where
+ * every probe waits for its timeout, with the scanner's window and a smaller one. If nmap is
+ * on the PATH, the nmap scan the sweep replaced is timed on the same loopback /24.
+ *
+ *   java -cp target/classes:target/test-classes com.filetransfer.service.PortSweepBench [--listeners=20] [--runs=5]
+ *
+ * Port 8080 must be free on the 127.0.0.x addresses, so the app must not be running.
+ */
+final class PortSweepBench {
+
+    private static final int PORT = 8080;
+    private static final long TIMEOUT_MS = 500; // NetworkScanner.CONNECT_TIMEOUT_MS
+    private static final String LOOPBACK_NET = "127.0.0.";
+    private static final String SILENT_NET = "192.0.2.";
+
+    private PortSweepBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int listenerCount = Bench.intArg(args, "listeners", 20);
+        int runs = Bench.intArg(args, "runs", 5);
+
+        List<Integer> hosts = new ArrayList<>();
+        for (int host = 2; host <= 254; host++) {
+            hosts.add(host);
+        }
+        Collections.shuffle(hosts);
+        List<ServerSocket> listeners = new ArrayList<>();
+        try {
+            for (int host : hosts.subList(0, listenerCount)) {
+                ServerSocket listener = new ServerSocket();
+                listener.bind(new InetSocketAddress(LOOPBACK_NET + host, PORT));
+                listeners.add(listener);
+            }
+
+            System.out.println("Loopback /24 with " + listenerCount + " listeners, window 256");
+            for (int run = 0; run < runs; run++) {
+                sweep(LOOPBACK_NET, 256, listenerCount);
+            }
+            System.out.println("Silent /24 (" + SILENT_NET + "0/24)");
+            for (int window : new int[] {256, 64}) {
+                sweep(SILENT_NET, window, 0);
+            }
+            nmap(listenerCount);
+        } finally {
+            for (ServerSocket listener : listeners) {
+                listener.close();
+            }
+        }
+    }
+
+    private static void sweep(String network, int window, int expected) throws IOException {
+        Set<InetAddress> found = ConcurrentHashMap.newKeySet();
+        long start = System.nanoTime();
+        int probed = new PortSweep(PORT, window, TIMEOUT_MS, new TokenBucket(0)).run(hosts(network), found::add);
+        System.out.printf("  window %3d: %3d probed, %2d/%d found in %4d ms%n", window, probed, found.size(),
+            expected, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static Iterator<InetAddress> hosts(String network) {
+        List<InetAddress> targets = new ArrayList<>();
+        for (int host = 1; host <= 254; host++) {
+            try {
+                targets.add(InetAddress.getByName(network + host));
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return targets.iterator();
+    }
+
+    /**
+     * The same loopback /24 through the nmap command NetworkScanner used to run
+     */
+    private static void nmap(int expected) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder("nmap", "-p", String.valueOf(PORT), "--open", "-oG", "-",
+            LOOPBACK_NET + "0/24").redirectErrorStream(true);
+        Process process;
+        long start = System.nanoTime();
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            System.out.println("nmap: not installed, skipped");
+            return;
+        }
+        int found = 0;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.contains(PORT + "/open")) {
+                    found++;
+                }
+            }
+        }
+        process.waitFor();
+        System.out.printf("nmap: %2d/%d found in %4d ms%n", found, expected, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,231 @@
+package com.filetransfer.service;
+
+import com.filetransfer.model.TransferTask;
+import com.filetransfer.util.Logger;
+import com.filetransfer.util.SessionManager;
+import com.filetransfer.util.TransportConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * Loopback effect of the transport settings (app.transfer.*, app.socket.*):
+ * stream buffer size against transferTo, socket buffer sizes, TCP_NODELAY on a
+ * request/reply round trip, and one stream against stripes through the full send path.
+ *
+ *   java -cp target/classes:target/test-classes com.filetransfer.service.TransportBench [--size=256] [--runs=3]
+ *
+ * Throughput is the best of --runs sends of a --size MB file. Loopback has no latency,
+ * so socket buffers and stripes show their cost here rather than their gain on a slow link.
+ */
+final class TransportBench {
+
+    private static final String[] BUFFER_SIZES = {"1024", "8192", "65536", "262144"};
+    private static final String[] SOCKET_BUFFER_SIZES = {"0", "65536", "262144", "1048576", "4194304"};
+    private static final int ROUND_TRIPS = 200;
+
+    private TransportBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = Bench.intArg(args, "size", 256);
+        int runs = Bench.intArg(args, "runs", 3);
+        Path dir = Bench.workDir("transport-bench");
+        Logger logger = Bench.logger(dir);
+        Path file = dir.resolve("payload.bin");
+        writeRandom(file, sizeMb * 1024L * 1024L);
+        System.out.println("Payload " + sizeMb + " MB, best of " + runs);
+
+        System.out.println("\nCopy engine (app.transfer.engine, app.transfer.bufferSize)");
+        for (String bufferSize : BUFFER_SIZES) {
+            ChannelTransfer.setStreamBufferSize(Integer.parseInt(bufferSize));
+            report("STREAM, bufferSize " + bufferSize, file, runs,
+                sendOnce(logger, file, Bench.config(), Engine.STREAM));
+        }
+        report("ZERO_COPY (transferTo)", file, runs, sendOnce(logger, file, Bench.config(), Engine.TRANSFER_TO));
+        report("ZERO_COPY + CRC32C (direct buffer)", file, runs, sendOnce(logger, file, Bench.config(), Engine.CHECKSUMMED));
+
+        System.out.println("\nSocket buffers (app.socket.sendBufferSize/receiveBufferSize), ZERO_COPY");
+        for (String size : SOCKET_BUFFER_SIZES) {
+            TransportConfig config = Bench.config(TransportConfig.SEND_BUFFER_SIZE + "=" + size,
+                TransportConfig.RECEIVE_BUFFER_SIZE + "=" + size);
+            report("SO_SNDBUF/SO_RCVBUF " + (size.equals("0") ? "OS default" : size), file, runs,
+                sendOnce(logger, file, config, Engine.TRANSFER_TO));
+        }
+
+        System.out.println("\nTCP_NODELAY (app.socket.tcpNoDelay), request in two writes, one-line reply");
+        for (String noDelay : new String[] {"true", "false"}) {
+            System.out.printf("  %-40s median round trip %8.1f us%n", "tcpNoDelay " + noDelay,
+                medianRoundTripMicros(Bench.config(TransportConfig.TCP_NO_DELAY + "=" + noDelay)));
+        }
+
+        System.out.println("\nStripes (app.transfer.stripes), full send path to a local receiver");
+        try (Bench.Receiver receiver = new Bench.Receiver(dir, logger, Bench.config())) {
+            for (int stripes : new int[] {1, 2, 4}) {
+                report(stripes == 1 ? "one stream" : stripes + " stripes", file, runs,
+                    () -> sendThroughService(logger, dir, receiver, file, stripes, true));
+            }
+            report("one stream, app.transfer.checksum=false", file, runs,
+                () -> sendThroughService(logger, dir, receiver, file, 1, false));
+        }
+        System.exit(0);
+    }
+
+    private enum Engine { STREAM, TRANSFER_TO, CHECKSUMMED }
+
+    private interface Run {
+        long nanos() throws Exception;
+    }
+
+    private static void report(String label, Path file, int runs, Run run) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            best = Math.min(best, run.nanos());
+        }
+        System.out.printf("  %-40s %8.0f MB/s%n", label, Files.size(file) / (best / 1e9) / 1e6);
+    }
+
+    /**
+     * One send of the file through a ChannelTransfer loop to a reader that discards it
+     */
+    private static Run sendOnce(Logger logger, Path file, TransportConfig config, Engine engine) {
+        return () -> {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                config.applyTo(server.socket());
+                server.bind(new InetSocketAddress(Bench.LOCALHOST, 0));
+                Thread sink = discard(server);
+                long start = System.nanoTime();
+                try (SocketChannel channel = SocketChannel.open();
+                     FileChannel source = FileChannel.open(file)) {
+                    config.applyTo(channel.socket(), Bench.LOCALHOST);
+                    channel.connect(server.getLocalAddress());
+                    long size = source.size();
+                    TransferProgress progress = new TransferProgress(logger, "bench", size, percentage -> { });
+                    if (engine == Engine.STREAM) {
+                        try (InputStream in = Files.newInputStream(file)) {
+                            ChannelTransfer.sendStream(in, channel.socket().getOutputStream(), size, progress, null);
+                        }
+                    } else {
+                        ChannelTransfer.sendZeroCopy(source, 0, size, channel, progress,
+                            engine == Engine.CHECKSUMMED ? new CRC32C() : null);
+                    }
+                }
+                sink.join();
+                return System.nanoTime() - start;
+            }
+        };
+    }
+
+    private static Thread discard(ServerSocketChannel server) {
+        Thread sink = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            try (SocketChannel channel = server.accept()) {
+                while (channel.read(buffer.clear()) >= 0) {
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        sink.start();
+        return sink;
+    }
+
+    /**
+     * Median time of a request written as a short header and a body, answered with one line.
+     * Without TCP_NODELAY the body waits for the header's ACK, which the peer delays.
+     */
+    private static double medianRoundTripMicros(TransportConfig config) throws Exception {
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(Bench.LOCALHOST, 0));
+            Thread echo = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    config.applyTo(socket, Bench.LOCALHOST);
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] request = new byte[64];
+                    while (in.readNBytes(request, 0, request.length) == request.length) {
+                        out.write("OK:1\n".getBytes());
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            echo.start();
+            long[] times = new long[ROUND_TRIPS];
+            try (Socket socket = new Socket()) {
+                config.applyTo(socket, Bench.LOCALHOST);
+                socket.connect(server.getLocalSocketAddress());
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                byte[] header = new byte[16];
+                byte[] body = new byte[48];
+                byte[] reply = new byte[5];
+                for (int i = 0; i < times.length; i++) {
+                    long start = System.nanoTime();
+                    out.write(header);
+                    out.write(body);
+                    in.readNBytes(reply, 0, reply.length);
+                    times[i] = System.nanoTime() - start;
+                }
+            }
+            echo.join();
+            Arrays.sort(times);
+            return times[times.length / 2] / 1e3;
+        }
+    }
+
+    /**
+     * One send of the file with the app's own send path, striped if stripes > 1, timed until
+     * the file is in the receiver's mailbox (without checksums the sender does not wait for that)
+     */
+    private static long sendThroughService(Logger logger, Path dir, Bench.Receiver receiver, Path file,
+                                           int stripes, boolean checksummed) throws Exception {
+        receiver.clearMailbox();
+        TransferQueueManager queue = new TransferQueueManager(logger);
+        FileTransferService sender = new FileTransferService(logger, dir.resolve("outbox").toString(),
+            new SessionManager(logger));
+        sender.setQueueManager(queue);
+        sender.setStripeCount(stripes);
+        sender.setDedupEnabled(false);
+        sender.setChecksumEnabled(checksummed);
+        try {
+            TransferTask task = queue.addTask(new TransferTask(file.toFile(), Bench.LOCALHOST,
+                TransferTask.TransferDirection.OUTGOING));
+            queue.updateTaskStatus(task.getId(), TransferTask.TransferStatus.AWAITING_REMOTE_APPROVAL);
+            long start = System.nanoTime();
+            sender.sendFileForTask(task);
+            if (task.getStatus() != TransferTask.TransferStatus.COMPLETED) {
+                throw new IOException("Send failed: " + task.getErrorMessage());
+            }
+            Path received = receiver.mailbox.resolve(file.getFileName());
+            while (!Files.exists(received)) {
+                Thread.onSpinWait();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    private static void writeRandom(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(1);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}